@@ -19,7 +19,19 @@ import com.unidev.polydata.storage.PolyStorage;
 import lombok.extern.slf4j.Slf4j;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * Named polydata storage,
@@ -38,19 +50,104 @@ public abstract class AbstractEmbeddedStorage implements PolyStorage {
         return dbFile;
     }
 
+    /**
+     * Writer connection, in single connection mode used also for reads
+     */
     protected Connection connection;
 
+    /**
+     * Pool of read connections, null in single connection mode or until pool is rebuilt after closeDb
+     */
+    protected volatile EmbeddedConnectionPool readPool;
+
+    /**
+     * Number of read connections in pooled mode, 0 in single connection mode
+     */
+    protected int readPoolSize;
+
+    /**
+     * Connections borrowed by running reads and open streams, their statement caches are closed on release
+     */
+    private final Set<Connection> borrowedConnections = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    protected final Object writeLock = new Object();
+
+    /**
+     * Prepared statement caches of connections opened by storage
+     */
+    private final Map<Connection, PreparedStatementCache> statementCaches = new IdentityHashMap<>();
+
+    protected int statementCacheSize = PreparedStatementCache.DEFAULT_SIZE;
+
+    public static final int DEFAULT_FETCH_SIZE = 100;
+
+    /**
+     * Number of rows fetched from database at once by streamed queries
+     */
+    protected int fetchSize = DEFAULT_FETCH_SIZE;
+
+    /**
+     * Cache of query pages, null if query caching is not enabled
+     */
+    protected volatile EmbeddedQueryCache queryCache;
+
+    /**
+     * Log of slow statements, null if slow statement logging is not enabled
+     */
+    protected volatile SlowStatementLog slowStatementLog;
+
+    /**
+     * Actions deferred until current write transaction is committed, like invalidation of cached queries
+     */
+    private final List<Runnable> afterCommitActions = Collections.synchronizedList(new ArrayList<>());
+
     public Connection fetchConnection() {
         if (connection == null) {
             synchronized (this) {
                 if (connection == null) {
-                    connection = openDb();
+                    connection = registerStatementCache(openDb());
                 }
             }
         }
         return connection;
     }
 
+    /**
+     * Enable pooled mode: reads are executed on up to readConnections read-only connections,
+     * writes are executed on dedicated writer connection
+     *
+     * @param readConnections number of read connections
+     */
+    public void enableConnectionPool(int readConnections) {
+        synchronized (this) {
+            if (readPoolSize > 0) {
+                throw new EmbeddedStorageException("Connection pool already enabled for " + dbFile);
+            }
+            readPool = new EmbeddedConnectionPool(() -> registerStatementCache(openReadDb()), readConnections);
+            readPoolSize = readConnections;
+        }
+    }
+
+    public boolean isPooled() {
+        return readPoolSize > 0;
+    }
+
+    /**
+     * Pool of read connections, pool closed by closeDb is rebuilt lazily. Null in single connection mode.
+     */
+    protected EmbeddedConnectionPool fetchReadPool() {
+        EmbeddedConnectionPool pool = readPool;
+        if (pool != null || readPoolSize == 0) {
+            return pool;
+        }
+        synchronized (this) {
+            if (readPool == null) {
+                readPool = new EmbeddedConnectionPool(() -> registerStatementCache(openReadDb()), readPoolSize);
+            }
+            return readPool;
+        }
+    }
+
     /**
      * Open poly storage connection
      *
@@ -60,12 +157,387 @@ public abstract class AbstractEmbeddedStorage implements PolyStorage {
     public abstract Connection openDb();
 
     /**
-     * Close DB
+     * Open connection used only for reads in pooled mode
+     */
+    public Connection openReadDb() {
+        Connection readConnection = openDb();
+        try {
+            readConnection.setReadOnly(true);
+        } catch (SQLException e) {
+            log.warn("Failed to mark connection read only {}", dbFile, e);
+        }
+        return readConnection;
+    }
+
+    /**
+     * Execute read operation on pooled read connection,
+     * in single connection mode operation is executed on writer connection
+     */
+    protected <T> T withReadConnection(Function<Connection, T> action) {
+        EmbeddedConnectionPool pool = fetchReadPool();
+        if (pool == null) {
+            synchronized (writeLock) {
+                return action.apply(fetchConnection());
+            }
+        }
+        Connection readConnection = borrowPooledConnection(pool);
+        try {
+            return action.apply(readConnection);
+        } finally {
+            releasePooledConnection(pool, readConnection);
+        }
+    }
+
+    private Connection borrowPooledConnection(EmbeddedConnectionPool pool) {
+        Connection pooledConnection = pool.borrow();
+        synchronized (statementCaches) {
+            borrowedConnections.add(pooledConnection);
+        }
+        return pooledConnection;
+    }
+
+    /**
+     * Return connection to pool it was borrowed from, if pool was closed meanwhile
+     * connection is closed by pool and its statement cache is closed here
+     */
+    private void releasePooledConnection(EmbeddedConnectionPool pool, Connection pooledConnection) {
+        synchronized (statementCaches) {
+            borrowedConnections.remove(pooledConnection);
+        }
+        if (pool.isClosed()) {
+            closeStatementCache(pooledConnection);
+        }
+        pool.release(pooledConnection);
+    }
+
+    private void closeStatementCache(Connection openedConnection) {
+        PreparedStatementCache statementCache;
+        synchronized (statementCaches) {
+            statementCache = statementCaches.remove(openedConnection);
+        }
+        if (statementCache != null) {
+            statementCache.close();
+        }
+    }
+
+    /**
+     * Execute write operation on writer connection, writes are serialized
+     */
+    protected <T> T withWriteConnection(Function<Connection, T> action) {
+        synchronized (writeLock) {
+            return action.apply(fetchConnection());
+        }
+    }
+
+    /**
+     * Execute action in transaction on connection, committed on success and rolled back on failure.
+     * If connection is already in transaction, action joins it.
+     */
+    protected <T> T inTransaction(Connection connection, Callable<T> action) {
+        try {
+            if (!connection.getAutoCommit()) {
+                return action.call();
+            }
+        } catch (EmbeddedStorageException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new EmbeddedStorageException(e);
+        }
+        try {
+            connection.setAutoCommit(false);
+            T result = action.call();
+            connection.commit();
+            runAfterCommitActions();
+            return result;
+        } catch (Exception e) {
+            try {
+                connection.rollback();
+            } catch (SQLException rollbackException) {
+                log.error("Failed to rollback transaction {}", dbFile, rollbackException);
+            }
+            afterCommitActions.clear();
+            if (e instanceof EmbeddedStorageException) {
+                throw (EmbeddedStorageException) e;
+            }
+            throw new EmbeddedStorageException(e);
+        } finally {
+            try {
+                connection.setAutoCommit(true);
+            } catch (SQLException e) {
+                log.error("Failed to restore auto commit {}", dbFile, e);
+            }
+        }
+    }
+
+    /**
+     * Fetch connection for streamed query, which stays open until stream is closed:
+     * in pooled mode read connection is borrowed from pool, otherwise dedicated read connection is opened
+     * with its own statement cache, closed when connection is released
+     */
+    protected Connection borrowStreamConnection() {
+        EmbeddedConnectionPool pool = fetchReadPool();
+        if (pool != null) {
+            return borrowPooledConnection(pool);
+        }
+        Connection streamConnection = registerStatementCache(openReadDb());
+        synchronized (statementCaches) {
+            borrowedConnections.add(streamConnection);
+        }
+        return streamConnection;
+    }
+
+    /**
+     * Release connection fetched by borrowStreamConnection
+     */
+    protected void releaseStreamConnection(Connection streamConnection) {
+        EmbeddedConnectionPool pool = readPool;
+        if (pool != null && pool.connections().contains(streamConnection)) {
+            releasePooledConnection(pool, streamConnection);
+            return;
+        }
+        // dedicated connection, or pooled connection of pool closed by closeDb
+        synchronized (statementCaches) {
+            borrowedConnections.remove(streamConnection);
+        }
+        closeStatementCache(streamConnection);
+        try {
+            streamConnection.close();
+        } catch (SQLException e) {
+            log.warn("Failed to close stream connection {}", dbFile, e);
+        }
+    }
+
+    /**
+     * Prepare statement through statement cache of connection,
+     * returned statement is reused and should not be closed by caller.
+     * Statements for connections not opened by storage are prepared without caching.
+     */
+    protected PreparedStatement prepareStatement(Connection connection, String sql) throws SQLException {
+        PreparedStatementCache statementCache;
+        synchronized (statementCaches) {
+            statementCache = statementCaches.get(connection);
+        }
+        if (statementCache == null) {
+            return connection.prepareStatement(sql);
+        }
+        return statementCache.prepare(sql);
+    }
+
+    /**
+     * Number of statements served from statement cache
+     */
+    public long fetchStatementCacheHits() {
+        return fetchStatementCaches().stream().mapToLong(PreparedStatementCache::getHits).sum();
+    }
+
+    /**
+     * Number of statements prepared because they were not in statement cache
+     */
+    public long fetchStatementCacheMisses() {
+        return fetchStatementCaches().stream().mapToLong(PreparedStatementCache::getMisses).sum();
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * Set max number of cached statements per connection, applies to connections opened afterwards
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        if (statementCacheSize <= 0) {
+            throw new EmbeddedStorageException("Statement cache size should be positive: " + statementCacheSize);
+        }
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public void setFetchSize(int fetchSize) {
+        if (fetchSize <= 0) {
+            throw new EmbeddedStorageException("Fetch size should be positive: " + fetchSize);
+        }
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Enable cache of query pages with max number of cached pages,
+     * pages of container are cached until write to container is committed
+     */
+    public void enableQueryCache(int size) {
+        queryCache = new EmbeddedQueryCache(size);
+    }
+
+    public EmbeddedQueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * Evaluate query through query cache, query is evaluated directly if cache is not enabled or query is not cacheable
+     */
+    protected EmbeddedPolyList cachedQuery(String container, String operation, EmbeddedPolyQuery query, Supplier<EmbeddedPolyList> evaluation) {
+        EmbeddedQueryCache cache = queryCache;
+        Object queryKey = cache == null ? null : EmbeddedQueryCache.queryKey(operation, query);
+        if (queryKey == null) {
+            return evaluation.get();
+        }
+        return cache.fetch(container, queryKey, evaluation);
+    }
+
+    /**
+     * Invalidate cached queries of modified container, in transaction invalidation is deferred until commit
+     */
+    protected void invalidateQueries(Connection connection, String container) {
+        EmbeddedQueryCache cache = queryCache;
+        if (cache == null) {
+            return;
+        }
+        afterCommit(connection, () -> cache.invalidate(container));
+    }
+
+    /**
+     * Execute action after current transaction of connection is committed, action is dropped if transaction is rolled back.
+     * Without transaction action is executed immediately.
+     */
+    protected void afterCommit(Connection connection, Runnable action) {
+        try {
+            if (connection.getAutoCommit()) {
+                action.run();
+                return;
+            }
+        } catch (SQLException e) {
+            throw new EmbeddedStorageException(e);
+        }
+        afterCommitActions.add(action);
+    }
+
+    /**
+     * Number of actions deferred until commit, used as mark for discarding actions of operation rolled back to savepoint
+     */
+    protected int fetchAfterCommitMark() {
+        return afterCommitActions.size();
+    }
+
+    /**
+     * Discard actions deferred after mark
+     */
+    protected void discardAfterCommit(int mark) {
+        synchronized (afterCommitActions) {
+            afterCommitActions.subList(mark, afterCommitActions.size()).clear();
+        }
+    }
+
+    private void runAfterCommitActions() {
+        List<Runnable> actions;
+        synchronized (afterCommitActions) {
+            actions = new ArrayList<>(afterCommitActions);
+            afterCommitActions.clear();
+        }
+        for (Runnable action : actions) {
+            try {
+                action.run();
+            } catch (Exception e) {
+                log.error("Failed to execute after commit action {}", dbFile, e);
+            }
+        }
+    }
+
+    /**
+     * Log statements slower than threshold with their query plan, each statement shape is logged at most once per log interval
+     */
+    public void enableSlowStatementLog(long thresholdMillis, long logIntervalMillis) {
+        slowStatementLog = new SlowStatementLog(thresholdMillis, logIntervalMillis);
+    }
+
+    public void disableSlowStatementLog() {
+        slowStatementLog = null;
+    }
+
+    public SlowStatementLog getSlowStatementLog() {
+        return slowStatementLog;
+    }
+
+    /**
+     * Record duration of executed statement in slow statement log
+     *
+     * @param startNanos System.nanoTime() before statement execution
+     */
+    protected void recordStatement(Connection connection, String sql, Map<Integer, Object> params, long rows, long startNanos) {
+        SlowStatementLog statementLog = slowStatementLog;
+        if (statementLog == null) {
+            return;
+        }
+        statementLog.record(sql, params, rows, System.nanoTime() - startNanos, () -> explainStatement(connection, sql, params));
+    }
+
+    /**
+     * Prefix of statement returning its query plan
+     */
+    protected String explainPrefix() {
+        return "EXPLAIN ";
+    }
+
+    /**
+     * Query plan of statement, one line per plan row
+     */
+    protected String explainStatement(Connection connection, String sql, Map<Integer, Object> params) {
+        try (PreparedStatement preparedStatement = connection.prepareStatement(explainPrefix() + sql)) {
+            for (Map.Entry<Integer, Object> entry : params.entrySet()) {
+                preparedStatement.setObject(entry.getKey(), entry.getValue());
+            }
+            StringBuilder plan = new StringBuilder();
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                int detailColumn = resultSet.getMetaData().getColumnCount();
+                while (resultSet.next()) {
+                    plan.append(System.lineSeparator()).append(resultSet.getString(detailColumn));
+                }
+            }
+            return plan.toString();
+        } catch (SQLException e) {
+            throw new EmbeddedStorageException(e);
+        }
+    }
+
+    private Connection registerStatementCache(Connection openedConnection) {
+        synchronized (statementCaches) {
+            statementCaches.put(openedConnection, new PreparedStatementCache(openedConnection, statementCacheSize));
+        }
+        return openedConnection;
+    }
+
+    private List<PreparedStatementCache> fetchStatementCaches() {
+        synchronized (statementCaches) {
+            return new ArrayList<>(statementCaches.values());
+        }
+    }
+
+    /**
+     * Close DB, connections borrowed by open streams are closed when they are released.
+     * Pooled mode is kept, pool of read connections is rebuilt on next read.
      */
     public void closeDb() throws EmbeddedStorageException {
+        synchronized (statementCaches) {
+            Iterator<Map.Entry<Connection, PreparedStatementCache>> iterator = statementCaches.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Connection, PreparedStatementCache> entry = iterator.next();
+                if (!borrowedConnections.contains(entry.getKey())) {
+                    entry.getValue().close();
+                    iterator.remove();
+                }
+            }
+        }
+        synchronized (this) {
+            if (readPool != null) {
+                readPool.close();
+                readPool = null;
+            }
+        }
         if (connection != null) {
             try {
                 connection.close();
+                connection = null;
             } catch (SQLException e) {
                 log.error("Failed to close connection for {}", dbFile, e);
                 throw new EmbeddedStorageException(e);
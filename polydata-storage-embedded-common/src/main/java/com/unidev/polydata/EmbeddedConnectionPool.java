@@ -0,0 +1,154 @@
+/**
+ * Copyright (c) 2017 Denis O <denis.o@linux.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.unidev.polydata;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Fixed size pool of read connections,
+ * connections are opened lazily and handed out per operation
+ */
+@Slf4j
+public class EmbeddedConnectionPool {
+
+    public static final long DEFAULT_BORROW_TIMEOUT = 30_000L;
+
+    private final Supplier<Connection> connectionFactory;
+    private final int size;
+    private final long borrowTimeout;
+
+    private final BlockingQueue<Connection> idleConnections = new LinkedBlockingQueue<>();
+    private final List<Connection> connections = new ArrayList<>();
+
+    private volatile boolean closed;
+
+    public EmbeddedConnectionPool(Supplier<Connection> connectionFactory, int size) {
+        this(connectionFactory, size, DEFAULT_BORROW_TIMEOUT);
+    }
+
+    public EmbeddedConnectionPool(Supplier<Connection> connectionFactory, int size, long borrowTimeout) {
+        if (size <= 0) {
+            throw new EmbeddedStorageException("Connection pool size should be positive: " + size);
+        }
+        this.connectionFactory = connectionFactory;
+        this.size = size;
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    /**
+     * Fetch idle connection, open new one if pool is not full or wait for released connection
+     */
+    public Connection borrow() {
+        if (closed) {
+            throw new EmbeddedStorageException("Connection pool is closed");
+        }
+        Connection connection = idleConnections.poll();
+        if (connection != null) {
+            return connection;
+        }
+        synchronized (connections) {
+            if (connections.size() < size) {
+                connection = connectionFactory.get();
+                connections.add(connection);
+                return connection;
+            }
+        }
+        try {
+            connection = idleConnections.poll(borrowTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EmbeddedStorageException(e);
+        }
+        if (connection == null) {
+            throw new EmbeddedStorageException("Timeout waiting for pooled connection");
+        }
+        return connection;
+    }
+
+    /**
+     * Return connection back to pool, broken connections are dropped
+     */
+    public void release(Connection connection) {
+        if (closed) {
+            closeQuietly(connection);
+            synchronized (connections) {
+                connections.remove(connection);
+            }
+            return;
+        }
+        try {
+            if (connection.isClosed()) {
+                synchronized (connections) {
+                    connections.remove(connection);
+                }
+                return;
+            }
+        } catch (SQLException e) {
+            log.warn("Failed to check pooled connection state", e);
+        }
+        idleConnections.offer(connection);
+    }
+
+    /**
+     * List of opened connections
+     */
+    public List<Connection> connections() {
+        synchronized (connections) {
+            return new ArrayList<>(connections);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close all opened connections, borrowed connections are closed on release
+     */
+    public void close() {
+        closed = true;
+        List<Connection> idle = new ArrayList<>();
+        idleConnections.drainTo(idle);
+        synchronized (connections) {
+            for (Connection connection : idle) {
+                closeQuietly(connection);
+                connections.remove(connection);
+            }
+        }
+    }
+
+    private void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            log.warn("Failed to close pooled connection", e);
+        }
+    }
+
+}
@@ -37,6 +37,14 @@ public class EmbeddedPolyConstants {
     public static final String TYPE_POLY_INDEX = "poly_index";
 
     public static final String DATA = "data";
+    public static final String POLY_TAG = "poly_tag";
+    public static final String POLY_COUNTER = "poly_counter";
+    public static final String POLY_FIELD_INDEX = "poly_field_index";
+    public static final String POLY_TEXT = "poly_text";
+    public static final String POLY_TEXT_FIELD = "poly_text_field";
+
+    public static final String COUNTER_TYPE = "type";
+    public static final String COUNTER_TAG = "tag";
 
     public static final String ID_KEY = "_id";
     public static final String DATA_KEY = "data";
@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) 2017 Denis O <denis.o@linux.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.unidev.polydata;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position of last record on page, used for keyset pagination.
+ * Encoded as opaque continuation token which is passed back by clients.
+ */
+@Data
+@AllArgsConstructor
+public class EmbeddedPolyCursor {
+
+    private static final String SEPARATOR = "|";
+
+    /**
+     * Value of sort date column of last record
+     */
+    private String sortDate;
+
+    private long id;
+
+    public String encode() {
+        String raw = id + SEPARATOR + sortDate;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static EmbeddedPolyCursor decode(String token) {
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            int separator = raw.indexOf(SEPARATOR);
+            return new EmbeddedPolyCursor(raw.substring(separator + 1), Long.parseLong(raw.substring(0, separator)));
+        } catch (RuntimeException e) {
+            throw new EmbeddedStorageException("Invalid continuation token " + token, e);
+        }
+    }
+
+}
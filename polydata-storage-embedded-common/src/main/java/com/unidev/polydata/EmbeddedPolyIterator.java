@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2017 Denis O <denis.o@linux.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.unidev.polydata;
+
+import com.unidev.polydata.domain.BasicPoly;
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import static com.unidev.polydata.EmbeddedPolyConstants.POLY_OBJECT_MAPPER;
+
+/**
+ * Cursor over query results, rows are decoded to polys one by one as iterator is advanced.
+ * Statement is closed when results are exhausted or iterator is closed.
+ */
+@Slf4j
+public class EmbeddedPolyIterator implements Iterator<BasicPoly>, AutoCloseable {
+
+    /**
+     * Decoder of current result set row
+     */
+    @FunctionalInterface
+    public interface RowDecoder {
+        BasicPoly decode(ResultSet resultSet) throws Exception;
+    }
+
+    /**
+     * Decode poly from JSON data column
+     */
+    public static final RowDecoder DATA_DECODER = resultSet -> POLY_OBJECT_MAPPER.readValue(resultSet.getString(EmbeddedPolyConstants.DATA_KEY), BasicPoly.class);
+
+    private final PreparedStatement preparedStatement;
+    private final ResultSet resultSet;
+    private final RowDecoder decoder;
+    private final Runnable onClose;
+
+    /**
+     * Advanced row state, null if result set was not advanced since last returned poly
+     */
+    private Boolean rowAvailable;
+    private boolean closed;
+
+    /**
+     * Execute statement and iterate over its results
+     *
+     * @param onClose action executed after statement is closed, like releasing connection
+     */
+    public EmbeddedPolyIterator(PreparedStatement preparedStatement, RowDecoder decoder, Runnable onClose) throws SQLException {
+        this.preparedStatement = preparedStatement;
+        this.decoder = decoder;
+        this.onClose = onClose;
+        this.resultSet = preparedStatement.executeQuery();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (closed) {
+            return false;
+        }
+        if (rowAvailable == null) {
+            try {
+                rowAvailable = resultSet.next();
+            } catch (SQLException e) {
+                close();
+                throw new EmbeddedStorageException(e);
+            }
+            if (!rowAvailable) {
+                close();
+            }
+        }
+        return rowAvailable;
+    }
+
+    @Override
+    public BasicPoly next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        rowAvailable = null;
+        try {
+            return decoder.decode(resultSet);
+        } catch (Exception e) {
+            close();
+            throw new EmbeddedStorageException(e);
+        }
+    }
+
+    /**
+     * Stream over remaining polys, closing stream closes iterator
+     */
+    public Stream<BasicPoly> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(this::close);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        rowAvailable = false;
+        try {
+            resultSet.close();
+            preparedStatement.close();
+        } catch (SQLException e) {
+            log.warn("Failed to close streamed statement", e);
+        } finally {
+            if (onClose != null) {
+                onClose.run();
+            }
+        }
+    }
+
+}
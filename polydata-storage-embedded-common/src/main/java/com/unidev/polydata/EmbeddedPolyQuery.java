@@ -19,11 +19,14 @@ package com.unidev.polydata;
 import com.unidev.polydata.domain.PolyQuery;
 import lombok.*;
 
+import java.util.Date;
+import java.util.List;
+
 /**
  * Object for holding poly query object
  */
 @Data
-@Builder
+@Builder(toBuilder = true)
 @AllArgsConstructor
 @NoArgsConstructor
 public class EmbeddedPolyQuery implements PolyQuery {
@@ -34,6 +37,13 @@ public class EmbeddedPolyQuery implements PolyQuery {
     @Setter
     private String tag;
 
+    /**
+     * Boolean expression over tags, used instead of single tag when set
+     */
+    @Getter
+    @Setter
+    private TagExpression tagExpression;
+
     @Getter
     @Setter
     @Builder.Default
@@ -48,8 +58,78 @@ public class EmbeddedPolyQuery implements PolyQuery {
     @Setter
     private Boolean randomOrder;
 
+    /**
+     * Seed for random order, same seed and page return same sample
+     */
+    @Getter
+    @Setter
+    private Long randomSeed;
+
     @Getter
     @Setter
     private String type;
 
+    /**
+     * Order of polys, most recently updated first when not set. Text queries are ordered by relevance
+     */
+    @Getter
+    @Setter
+    private PolySort sort;
+
+    /**
+     * Top level fields of returned polys, all fields are returned when not set
+     */
+    @Getter
+    @Setter
+    private List<String> fields;
+
+    /**
+     * Conditions on poly fields, all conditions should match
+     */
+    @Getter
+    @Setter
+    private List<PolyPredicate> predicates;
+
+    /**
+     * Polys created at or after date
+     */
+    @Getter
+    @Setter
+    private Date createdSince;
+
+    /**
+     * Polys created before date
+     */
+    @Getter
+    @Setter
+    private Date createdUntil;
+
+    /**
+     * Polys updated at or after date, with continuation token used for incremental sync
+     */
+    @Getter
+    @Setter
+    private Date updatedSince;
+
+    /**
+     * Polys updated before date
+     */
+    @Getter
+    @Setter
+    private Date updatedUntil;
+
+    /**
+     * Full text query, polys are returned ordered by relevance and paginated by page number
+     */
+    @Getter
+    @Setter
+    private String textQuery;
+
+    /**
+     * Token returned with previous page, when set next page is fetched by keyset instead of page number
+     */
+    @Getter
+    @Setter
+    private String continuationToken;
+
 }
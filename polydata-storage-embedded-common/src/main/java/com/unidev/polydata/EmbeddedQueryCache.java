@@ -0,0 +1,175 @@
+/**
+ * Copyright (c) 2017 Denis O <denis.o@linux.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.unidev.polydata;
+
+import com.unidev.polydata.domain.BasicPoly;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Bounded LRU cache of query pages, keyed by container and normalized query.
+ * Each container has version counter incremented by writes, pages cached under older version are never returned.
+ * Polys are deep copied when page is cached and when it is returned, so readers may modify returned polys.
+ */
+public class EmbeddedQueryCache {
+
+    public static final int DEFAULT_SIZE = 1024;
+
+    private final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+
+    private final Map<Object, CachedPage> pages;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public EmbeddedQueryCache(int size) {
+        if (size <= 0) {
+            throw new EmbeddedStorageException("Query cache size should be positive: " + size);
+        }
+        this.pages = new LinkedHashMap<Object, CachedPage>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, CachedPage> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    /**
+     * Normalized key of query, null if query results are not reproducible and should not be cached
+     *
+     * @param operation storage operation evaluating query, same query may return different results in different operations
+     */
+    public static Object queryKey(String operation, EmbeddedPolyQuery query) {
+        boolean randomOrder = Boolean.TRUE.equals(query.getRandomOrder());
+        if (randomOrder && query.getRandomSeed() == null) {
+            return null;
+        }
+        return Arrays.asList(operation, query.getType(), query.getTag(), query.getTagExpression(), query.getTextQuery(),
+                PolySort.of(query), query.getPage(), query.getItemPerPage(), randomOrder, query.getRandomSeed(),
+                query.getFields() == null ? null : new ArrayList<>(query.getFields()),
+                query.getPredicates() == null ? null : new ArrayList<>(query.getPredicates()),
+                time(query.getCreatedSince()), time(query.getCreatedUntil()), time(query.getUpdatedSince()), time(query.getUpdatedUntil()),
+                query.getContinuationToken());
+    }
+
+    /**
+     * Fetch cached page of query or evaluate query and cache its page.
+     * Version is read before evaluation, so page evaluated concurrently with write is cached under outdated version.
+     */
+    public EmbeddedPolyList fetch(String container, Object queryKey, Supplier<EmbeddedPolyList> query) {
+        long version = version(container);
+        Object key = Arrays.asList(container, queryKey);
+        CachedPage cachedPage;
+        synchronized (this) {
+            cachedPage = pages.get(key);
+        }
+        if (cachedPage != null && cachedPage.version == version) {
+            hits.increment();
+            return copy(cachedPage.page);
+        }
+        misses.increment();
+        EmbeddedPolyList page = query.get();
+        synchronized (this) {
+            if (version(container) == version) {
+                pages.put(key, new CachedPage(version, copy(page)));
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Increment version of container, pages cached before are not returned anymore
+     */
+    public void invalidate(String container) {
+        versions.computeIfAbsent(container, key -> new AtomicLong()).incrementAndGet();
+    }
+
+    public long version(String container) {
+        AtomicLong version = versions.get(container);
+        return version == null ? 0L : version.get();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public synchronized int size() {
+        return pages.size();
+    }
+
+    public synchronized void clear() {
+        pages.clear();
+    }
+
+    private static Long time(Date date) {
+        return date == null ? null : date.getTime();
+    }
+
+    private static EmbeddedPolyList copy(EmbeddedPolyList page) {
+        EmbeddedPolyList copy = EmbeddedPolyList.newList();
+        for (BasicPoly poly : page.list()) {
+            BasicPoly polyCopy = new BasicPoly();
+            poly.forEach((key, value) -> polyCopy.put(key, copyValue(value)));
+            copy.add(polyCopy);
+        }
+        copy.setContinuationToken(page.getContinuationToken());
+        return copy;
+    }
+
+    /**
+     * Copy of decoded JSON value, nested objects and arrays are copied, scalars are immutable
+     */
+    private static Object copyValue(Object value) {
+        if (value instanceof Map) {
+            Map<Object, Object> copy = new LinkedHashMap<>();
+            ((Map<?, ?>) value).forEach((key, item) -> copy.put(key, copyValue(item)));
+            return copy;
+        }
+        if (value instanceof Collection) {
+            List<Object> copy = new ArrayList<>();
+            for (Object item : (Collection<?>) value) {
+                copy.add(copyValue(item));
+            }
+            return copy;
+        }
+        return value;
+    }
+
+    private static class CachedPage {
+        private final long version;
+        private final EmbeddedPolyList page;
+
+        CachedPage(long version, EmbeddedPolyList page) {
+            this.version = version;
+            this.page = page;
+        }
+    }
+
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) 2017 Denis O <denis.o@linux.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.unidev.polydata;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Outcome of persisting one poly in bulk operation
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class PersistResult {
+
+    public enum Status {
+        INSERTED, UPDATED, FAILED
+    }
+
+    private final String id;
+
+    private final Status status;
+
+    private final Throwable error;
+
+    public static PersistResult inserted(String id) {
+        return new PersistResult(id, Status.INSERTED, null);
+    }
+
+    public static PersistResult updated(String id) {
+        return new PersistResult(id, Status.UPDATED, null);
+    }
+
+    public static PersistResult failed(String id, Throwable error) {
+        return new PersistResult(id, Status.FAILED, error);
+    }
+
+    public boolean isFailed() {
+        return status == Status.FAILED;
+    }
+
+}
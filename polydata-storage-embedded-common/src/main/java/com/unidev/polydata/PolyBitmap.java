@@ -0,0 +1,408 @@
+/**
+ * Copyright (c) 2017 Denis O <denis.o@linux.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.unidev.polydata;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.LongConsumer;
+
+/**
+ * Compressed bitmap of poly row ids, Roaring style:
+ * ids are split by high 16 bits into chunks, each chunk is stored as sorted array when sparse
+ * or as 65536 bit bitmap when dense.
+ * Set operations return new bitmaps and don't modify operands.
+ */
+public class PolyBitmap {
+
+    public static final long MAX_VALUE = 0xFFFFFFFFL;
+
+    /**
+     * Max cardinality of array chunk, bigger chunks are stored as bitmaps
+     */
+    static final int ARRAY_CHUNK_MAX_SIZE = 4096;
+
+    private final TreeMap<Integer, Chunk> chunks = new TreeMap<>();
+
+    public static PolyBitmap of(long... values) {
+        PolyBitmap bitmap = new PolyBitmap();
+        for (long value : values) {
+            bitmap.add(value);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Add row id to bitmap, adding ids in ascending order is fastest
+     */
+    public void add(long value) {
+        if (value < 0 || value > MAX_VALUE) {
+            throw new EmbeddedStorageException("Bitmap value out of range: " + value);
+        }
+        int key = (int) (value >>> 16);
+        char low = (char) (value & 0xFFFF);
+        Chunk chunk = chunks.get(key);
+        chunks.put(key, chunk == null ? new ArrayChunk().add(low) : chunk.add(low));
+    }
+
+    public boolean contains(long value) {
+        if (value < 0 || value > MAX_VALUE) {
+            return false;
+        }
+        Chunk chunk = chunks.get((int) (value >>> 16));
+        return chunk != null && chunk.contains((char) (value & 0xFFFF));
+    }
+
+    public long cardinality() {
+        long cardinality = 0;
+        for (Chunk chunk : chunks.values()) {
+            cardinality += chunk.cardinality();
+        }
+        return cardinality;
+    }
+
+    public boolean isEmpty() {
+        return chunks.isEmpty();
+    }
+
+    public PolyBitmap and(PolyBitmap other) {
+        PolyBitmap result = new PolyBitmap();
+        PolyBitmap smaller = chunks.size() <= other.chunks.size() ? this : other;
+        PolyBitmap bigger = smaller == this ? other : this;
+        for (Map.Entry<Integer, Chunk> entry : smaller.chunks.entrySet()) {
+            Chunk chunk = bigger.chunks.get(entry.getKey());
+            if (chunk != null) {
+                result.putChunk(entry.getKey(), entry.getValue().and(chunk));
+            }
+        }
+        return result;
+    }
+
+    public PolyBitmap or(PolyBitmap other) {
+        PolyBitmap result = new PolyBitmap();
+        for (Map.Entry<Integer, Chunk> entry : chunks.entrySet()) {
+            Chunk chunk = other.chunks.get(entry.getKey());
+            result.putChunk(entry.getKey(), chunk == null ? entry.getValue().copy() : entry.getValue().or(chunk));
+        }
+        for (Map.Entry<Integer, Chunk> entry : other.chunks.entrySet()) {
+            if (!chunks.containsKey(entry.getKey())) {
+                result.putChunk(entry.getKey(), entry.getValue().copy());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Values of this bitmap which are not in other bitmap
+     */
+    public PolyBitmap andNot(PolyBitmap other) {
+        PolyBitmap result = new PolyBitmap();
+        for (Map.Entry<Integer, Chunk> entry : chunks.entrySet()) {
+            Chunk chunk = other.chunks.get(entry.getKey());
+            result.putChunk(entry.getKey(), chunk == null ? entry.getValue().copy() : entry.getValue().andNot(chunk));
+        }
+        return result;
+    }
+
+    /**
+     * Iterate values in ascending order
+     */
+    public void forEach(LongConsumer consumer) {
+        for (Map.Entry<Integer, Chunk> entry : chunks.entrySet()) {
+            long high = ((long) entry.getKey()) << 16;
+            entry.getValue().forEach(low -> consumer.accept(high | low));
+        }
+    }
+
+    /**
+     * Values as JSON array, used to pass bitmap to database in one parameter
+     */
+    public String toJSON() {
+        StringBuilder json = new StringBuilder("[");
+        forEach(value -> {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append(value);
+        });
+        return json.append(']').toString();
+    }
+
+    private void putChunk(int key, Chunk chunk) {
+        if (chunk != null && chunk.cardinality() > 0) {
+            chunks.put(key, chunk);
+        }
+    }
+
+    private interface LowConsumer {
+        void accept(int low);
+    }
+
+    private interface Chunk {
+
+        /**
+         * Add value, returns chunk to be stored since array chunk may be converted to bitmap chunk
+         */
+        Chunk add(char value);
+
+        boolean contains(char value);
+
+        int cardinality();
+
+        Chunk and(Chunk other);
+
+        Chunk or(Chunk other);
+
+        Chunk andNot(Chunk other);
+
+        Chunk copy();
+
+        void forEach(LowConsumer consumer);
+
+    }
+
+    private static class ArrayChunk implements Chunk {
+
+        private char[] values;
+        private int cardinality;
+
+        ArrayChunk() {
+            this(new char[4], 0);
+        }
+
+        ArrayChunk(char[] values, int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        public Chunk add(char value) {
+            int index = cardinality > 0 && values[cardinality - 1] < value ? -cardinality - 1 : Arrays.binarySearch(values, 0, cardinality, value);
+            if (index >= 0) {
+                return this;
+            }
+            if (cardinality >= ARRAY_CHUNK_MAX_SIZE) {
+                return toBitmapChunk().add(value);
+            }
+            int position = -index - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(Math.max(values.length * 2, 4), ARRAY_CHUNK_MAX_SIZE));
+            }
+            System.arraycopy(values, position, values, position + 1, cardinality - position);
+            values[position] = value;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        public boolean contains(char value) {
+            return Arrays.binarySearch(values, 0, cardinality, value) >= 0;
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        public Chunk and(Chunk other) {
+            char[] result = new char[cardinality];
+            int size = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (other.contains(values[i])) {
+                    result[size++] = values[i];
+                }
+            }
+            return new ArrayChunk(result, size);
+        }
+
+        @Override
+        public Chunk or(Chunk other) {
+            if (other instanceof BitmapChunk) {
+                return other.or(this);
+            }
+            ArrayChunk array = (ArrayChunk) other;
+            if (cardinality + array.cardinality > ARRAY_CHUNK_MAX_SIZE) {
+                return toBitmapChunk().or(array);
+            }
+            char[] result = new char[cardinality + array.cardinality];
+            int i = 0, j = 0, size = 0;
+            while (i < cardinality && j < array.cardinality) {
+                if (values[i] < array.values[j]) {
+                    result[size++] = values[i++];
+                } else if (values[i] > array.values[j]) {
+                    result[size++] = array.values[j++];
+                } else {
+                    result[size++] = values[i++];
+                    j++;
+                }
+            }
+            while (i < cardinality) {
+                result[size++] = values[i++];
+            }
+            while (j < array.cardinality) {
+                result[size++] = array.values[j++];
+            }
+            return new ArrayChunk(result, size);
+        }
+
+        @Override
+        public Chunk andNot(Chunk other) {
+            char[] result = new char[cardinality];
+            int size = 0;
+            for (int i = 0; i < cardinality; i++) {
+                if (!other.contains(values[i])) {
+                    result[size++] = values[i];
+                }
+            }
+            return new ArrayChunk(result, size);
+        }
+
+        @Override
+        public Chunk copy() {
+            return new ArrayChunk(Arrays.copyOf(values, cardinality), cardinality);
+        }
+
+        @Override
+        public void forEach(LowConsumer consumer) {
+            for (int i = 0; i < cardinality; i++) {
+                consumer.accept(values[i]);
+            }
+        }
+
+        BitmapChunk toBitmapChunk() {
+            BitmapChunk bitmap = new BitmapChunk();
+            for (int i = 0; i < cardinality; i++) {
+                bitmap.add(values[i]);
+            }
+            return bitmap;
+        }
+
+    }
+
+    private static class BitmapChunk implements Chunk {
+
+        private final long[] words;
+        private int cardinality;
+
+        BitmapChunk() {
+            this(new long[1 << 10], 0);
+        }
+
+        BitmapChunk(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        public Chunk add(char value) {
+            long word = words[value >>> 6];
+            long updated = word | (1L << value);
+            if (updated != word) {
+                words[value >>> 6] = updated;
+                cardinality++;
+            }
+            return this;
+        }
+
+        @Override
+        public boolean contains(char value) {
+            return (words[value >>> 6] & (1L << value)) != 0;
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        public Chunk and(Chunk other) {
+            if (other instanceof ArrayChunk) {
+                return other.and(this);
+            }
+            long[] otherWords = ((BitmapChunk) other).words;
+            long[] result = new long[words.length];
+            for (int i = 0; i < words.length; i++) {
+                result[i] = words[i] & otherWords[i];
+            }
+            return of(result);
+        }
+
+        @Override
+        public Chunk or(Chunk other) {
+            BitmapChunk result = (BitmapChunk) copy();
+            if (other instanceof ArrayChunk) {
+                other.forEach(low -> result.add((char) low));
+                return result;
+            }
+            long[] otherWords = ((BitmapChunk) other).words;
+            for (int i = 0; i < words.length; i++) {
+                result.words[i] |= otherWords[i];
+            }
+            return of(result.words);
+        }
+
+        @Override
+        public Chunk andNot(Chunk other) {
+            long[] result = Arrays.copyOf(words, words.length);
+            if (other instanceof ArrayChunk) {
+                other.forEach(low -> result[low >>> 6] &= ~(1L << low));
+            } else {
+                long[] otherWords = ((BitmapChunk) other).words;
+                for (int i = 0; i < words.length; i++) {
+                    result[i] &= ~otherWords[i];
+                }
+            }
+            return of(result);
+        }
+
+        @Override
+        public Chunk copy() {
+            return new BitmapChunk(Arrays.copyOf(words, words.length), cardinality);
+        }
+
+        @Override
+        public void forEach(LowConsumer consumer) {
+            for (int i = 0; i < words.length; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    consumer.accept((i << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+        }
+
+        /**
+         * Build chunk from bitmap words, sparse result is converted back to array chunk
+         */
+        static Chunk of(long[] words) {
+            int cardinality = 0;
+            for (long word : words) {
+                cardinality += Long.bitCount(word);
+            }
+            BitmapChunk bitmap = new BitmapChunk(words, cardinality);
+            if (cardinality > ARRAY_CHUNK_MAX_SIZE) {
+                return bitmap;
+            }
+            char[] values = new char[cardinality];
+            int[] size = {0};
+            bitmap.forEach(low -> values[size[0]++] = (char) low);
+            return new ArrayChunk(values, cardinality);
+        }
+
+    }
+
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) 2017 Denis O <denis.o@linux.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.unidev.polydata;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Equality or range condition on top level poly field, like: eq("author", "X") or between("price", 10, 20)
+ */
+@EqualsAndHashCode
+@Getter
+@ToString
+public class PolyPredicate {
+
+    public enum Operator {
+        EQ("= ?"), GT("> ?"), GTE(">= ?"), LT("< ?"), LTE("<= ?"), BETWEEN("BETWEEN ? AND ?");
+
+        private final String sql;
+
+        Operator(String sql) {
+            this.sql = sql;
+        }
+    }
+
+    private final String field;
+
+    private final Operator operator;
+
+    private final List<Object> values;
+
+    private PolyPredicate(String field, Operator operator, Object... values) {
+        this.field = PolyProjection.checkField(field);
+        this.operator = operator;
+        for (Object value : values) {
+            if (value == null) {
+                throw new EmbeddedStorageException("Predicate on " + field + " with null value");
+            }
+        }
+        this.values = Collections.unmodifiableList(Arrays.asList(values));
+    }
+
+    public static PolyPredicate eq(String field, Object value) {
+        return new PolyPredicate(field, Operator.EQ, value);
+    }
+
+    public static PolyPredicate gt(String field, Object value) {
+        return new PolyPredicate(field, Operator.GT, value);
+    }
+
+    public static PolyPredicate gte(String field, Object value) {
+        return new PolyPredicate(field, Operator.GTE, value);
+    }
+
+    public static PolyPredicate lt(String field, Object value) {
+        return new PolyPredicate(field, Operator.LT, value);
+    }
+
+    public static PolyPredicate lte(String field, Object value) {
+        return new PolyPredicate(field, Operator.LTE, value);
+    }
+
+    /**
+     * Inclusive range condition
+     */
+    public static PolyPredicate between(String field, Object from, Object to) {
+        return new PolyPredicate(field, Operator.BETWEEN, from, to);
+    }
+
+    /**
+     * SQL condition on field expression, values are bound as statement parameters in order
+     */
+    public String toSql(String fieldExpression) {
+        return fieldExpression + " " + operator.sql;
+    }
+
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2017 Denis O <denis.o@linux.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.unidev.polydata;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.unidev.polydata.domain.BasicPoly;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static com.unidev.polydata.EmbeddedPolyConstants.ID_KEY;
+import static com.unidev.polydata.EmbeddedPolyConstants.POLY_OBJECT_MAPPER;
+
+/**
+ * Selection of top level poly fields returned by query, poly id is always included
+ */
+public class PolyProjection {
+
+    private static final Pattern FIELD_PATTERN = Pattern.compile("[A-Za-z0-9_\\-]+");
+
+    private final Set<String> fields = new LinkedHashSet<>();
+
+    public PolyProjection(Collection<String> fields) {
+        this.fields.add(ID_KEY);
+        for (String field : fields) {
+            this.fields.add(checkField(field));
+        }
+    }
+
+    /**
+     * Validate top level field name, valid names can be embedded in SQL
+     */
+    public static String checkField(String field) {
+        if (field == null || !FIELD_PATTERN.matcher(field).matches()) {
+            throw new EmbeddedStorageException("Invalid poly field: " + field);
+        }
+        return field;
+    }
+
+    public Set<String> getFields() {
+        return fields;
+    }
+
+    /**
+     * JSON path of field, field names are validated so they can be embedded in SQL
+     */
+    public static String jsonPath(String field) {
+        return "$.\"" + field + "\"";
+    }
+
+    /**
+     * Decode only projected fields from poly JSON, other fields are skipped without being parsed to objects
+     */
+    public BasicPoly decode(String rawJSON) throws Exception {
+        BasicPoly poly = new BasicPoly();
+        try (JsonParser parser = POLY_OBJECT_MAPPER.getFactory().createParser(rawJSON)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new EmbeddedStorageException("Poly JSON is not an object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                if (fields.contains(field)) {
+                    poly.put(field, POLY_OBJECT_MAPPER.readValue(parser, Object.class));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return poly;
+    }
+
+}
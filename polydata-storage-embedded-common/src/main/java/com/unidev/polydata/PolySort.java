@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2017 Denis O <denis.o@linux.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.unidev.polydata;
+
+/**
+ * Order of query results by record date, ties are ordered by record id in same direction
+ */
+public enum PolySort {
+
+    UPDATE_DATE_DESC("update_date", true),
+    UPDATE_DATE_ASC("update_date", false),
+    CREATE_DATE_DESC("create_date", true),
+    CREATE_DATE_ASC("create_date", false);
+
+    public static final PolySort DEFAULT = UPDATE_DATE_DESC;
+
+    private final String column;
+
+    private final boolean descending;
+
+    PolySort(String column, boolean descending) {
+        this.column = column;
+        this.descending = descending;
+    }
+
+    /**
+     * Date column of records
+     */
+    public String getColumn() {
+        return column;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    /**
+     * SQL direction of ordering
+     */
+    public String direction() {
+        return descending ? "DESC" : "ASC";
+    }
+
+    /**
+     * Sort of query, default sort if query has no sort
+     */
+    public static PolySort of(EmbeddedPolyQuery query) {
+        return query.getSort() == null ? DEFAULT : query.getSort();
+    }
+
+}
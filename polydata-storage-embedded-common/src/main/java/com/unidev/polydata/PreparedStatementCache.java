@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2017 Denis O <denis.o@linux.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.unidev.polydata;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of prepared statements for one connection, keyed by SQL text.
+ * Cached statements should not be closed by callers, evicted statements are closed by cache.
+ */
+@Slf4j
+public class PreparedStatementCache {
+
+    public static final int DEFAULT_SIZE = 64;
+
+    private final Connection connection;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private final Map<String, PreparedStatement> statements;
+
+    public PreparedStatementCache(Connection connection, int size) {
+        if (size <= 0) {
+            throw new EmbeddedStorageException("Statement cache size should be positive: " + size);
+        }
+        this.connection = connection;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > size) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Fetch cached statement or prepare new one
+     */
+    public synchronized PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement preparedStatement = statements.get(sql);
+        if (preparedStatement != null && !preparedStatement.isClosed()) {
+            hits.increment();
+            return preparedStatement;
+        }
+        misses.increment();
+        preparedStatement = connection.prepareStatement(sql);
+        statements.put(sql, preparedStatement);
+        return preparedStatement;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public synchronized int size() {
+        return statements.size();
+    }
+
+    /**
+     * Close all cached statements
+     */
+    public synchronized void close() {
+        for (PreparedStatement preparedStatement : statements.values()) {
+            closeQuietly(preparedStatement);
+        }
+        statements.clear();
+    }
+
+    private void closeQuietly(PreparedStatement preparedStatement) {
+        try {
+            preparedStatement.close();
+        } catch (SQLException e) {
+            log.warn("Failed to close cached statement", e);
+        }
+    }
+
+}
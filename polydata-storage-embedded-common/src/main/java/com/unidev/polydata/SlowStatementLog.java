@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2017 Denis O <denis.o@linux.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.unidev.polydata;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Log of statements slower than threshold.
+ * Statements are grouped by shape, SQL with collapsed lists of parameters: query plan is captured on first slow occurrence of shape
+ * and each shape is logged at most once per log interval, with number of occurrences suppressed since last entry.
+ */
+@Slf4j
+public class SlowStatementLog {
+
+    public static final long DEFAULT_LOG_INTERVAL = 60_000L;
+    public static final int MAX_SHAPES = 1024;
+
+    private static final int MAX_PARAM_LENGTH = 100;
+    private static final Pattern PARAM_LIST_PATTERN = Pattern.compile("\\(\\s*\\?(\\s*,\\s*\\?)*\\s*\\)");
+    private static final Pattern WHITESPACE_PATTERN = Pattern.compile("\\s+");
+
+    private final long thresholdNanos;
+    private final long logIntervalNanos;
+
+    private final LongAdder slowStatements = new LongAdder();
+
+    private final Map<String, StatementShape> shapes = new LinkedHashMap<String, StatementShape>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, StatementShape> eldest) {
+            return size() > MAX_SHAPES;
+        }
+    };
+
+    /**
+     * @param thresholdMillis min duration of logged statements
+     * @param logIntervalMillis min interval between log entries of same statement shape
+     */
+    public SlowStatementLog(long thresholdMillis, long logIntervalMillis) {
+        if (thresholdMillis < 0 || logIntervalMillis < 0) {
+            throw new EmbeddedStorageException("Slow statement threshold and log interval should not be negative");
+        }
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.logIntervalNanos = TimeUnit.MILLISECONDS.toNanos(logIntervalMillis);
+    }
+
+    /**
+     * Record executed statement, statement is logged if it is slower than threshold
+     *
+     * @param plan query plan of statement, evaluated only on first slow occurrence of statement shape
+     */
+    public void record(String sql, Map<Integer, Object> params, long rows, long durationNanos, Supplier<String> plan) {
+        if (durationNanos < thresholdNanos) {
+            return;
+        }
+        slowStatements.increment();
+        String shape = shape(sql);
+        StatementShape statementShape;
+        synchronized (shapes) {
+            statementShape = shapes.get(shape);
+        }
+        boolean firstOccurrence = false;
+        if (statementShape == null) {
+            // plan is captured outside of lock, concurrent first occurrences may explain same shape twice
+            StatementShape newShape = new StatementShape(explain(plan));
+            synchronized (shapes) {
+                statementShape = shapes.get(shape);
+                if (statementShape == null) {
+                    statementShape = newShape;
+                    shapes.put(shape, statementShape);
+                    firstOccurrence = true;
+                }
+            }
+        }
+        long suppressed;
+        long now = System.nanoTime();
+        synchronized (statementShape) {
+            if (!firstOccurrence && now - statementShape.lastLogged < logIntervalNanos) {
+                statementShape.suppressed++;
+                return;
+            }
+            statementShape.lastLogged = now;
+            suppressed = statementShape.suppressed;
+            statementShape.suppressed = 0;
+        }
+        log.warn("Slow statement {} ms, {} rows, {} suppressed since last entry: {} params {} plan {}",
+                TimeUnit.NANOSECONDS.toMillis(durationNanos), rows, suppressed, sql, formatParams(params), statementShape.plan);
+    }
+
+    /**
+     * Number of statements slower than threshold, including suppressed ones
+     */
+    public long getSlowStatements() {
+        return slowStatements.sum();
+    }
+
+    /**
+     * Number of distinct statement shapes recorded as slow
+     */
+    public int fetchShapeCount() {
+        synchronized (shapes) {
+            return shapes.size();
+        }
+    }
+
+    /**
+     * Shape of statement, lists of parameters are collapsed so IN lists of different size have same shape
+     */
+    static String shape(String sql) {
+        String shape = PARAM_LIST_PATTERN.matcher(sql).replaceAll("(?, ...)");
+        return WHITESPACE_PATTERN.matcher(shape).replaceAll(" ").trim();
+    }
+
+    private static String explain(Supplier<String> plan) {
+        try {
+            return plan.get();
+        } catch (Exception e) {
+            log.debug("Failed to explain slow statement", e);
+            return "unavailable: " + e.getMessage();
+        }
+    }
+
+    private static String formatParams(Map<Integer, Object> params) {
+        StringBuilder formatted = new StringBuilder("[");
+        for (Object value : params.values()) {
+            if (formatted.length() > 1) {
+                formatted.append(", ");
+            }
+            String text = String.valueOf(value);
+            formatted.append(text.length() > MAX_PARAM_LENGTH ? text.substring(0, MAX_PARAM_LENGTH) + "..." : text);
+        }
+        return formatted.append("]").toString();
+    }
+
+    private static class StatementShape {
+        private final String plan;
+        private long lastLogged;
+        private long suppressed;
+
+        StatementShape(String plan) {
+            this.plan = plan;
+        }
+    }
+
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2017 Denis O <denis.o@linux.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.unidev.polydata;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Boolean expression over poly tags, like: and(tag("a"), tag("b"), not(tag("c")))
+ */
+@EqualsAndHashCode
+@Getter
+@ToString
+public class TagExpression {
+
+    public enum Operator {
+        TAG, AND, OR, NOT
+    }
+
+    private final Operator operator;
+
+    private final String tag;
+
+    private final List<TagExpression> operands;
+
+    private TagExpression(Operator operator, String tag, List<TagExpression> operands) {
+        this.operator = operator;
+        this.tag = tag;
+        this.operands = operands;
+    }
+
+    public static TagExpression tag(String tag) {
+        if (tag == null) {
+            throw new EmbeddedStorageException("Tag expression without tag");
+        }
+        return new TagExpression(Operator.TAG, tag, Collections.emptyList());
+    }
+
+    public static TagExpression and(TagExpression... operands) {
+        return new TagExpression(Operator.AND, null, checkOperands(operands));
+    }
+
+    public static TagExpression or(TagExpression... operands) {
+        return new TagExpression(Operator.OR, null, checkOperands(operands));
+    }
+
+    public static TagExpression not(TagExpression operand) {
+        return new TagExpression(Operator.NOT, null, checkOperands(operand));
+    }
+
+    /**
+     * All tags used in expression
+     */
+    public Set<String> tags() {
+        Set<String> tags = new LinkedHashSet<>();
+        collectTags(tags);
+        return tags;
+    }
+
+    /**
+     * Evaluate expression to bitmap of matching row ids
+     *
+     * @param postings bitmap of row ids for tag
+     * @param universe bitmap of all row ids, used only when negation is not inside intersection
+     */
+    public PolyBitmap evaluate(Function<String, PolyBitmap> postings, Supplier<PolyBitmap> universe) {
+        switch (operator) {
+            case TAG:
+                return postings.apply(tag);
+            case OR: {
+                PolyBitmap result = new PolyBitmap();
+                for (TagExpression operand : operands) {
+                    result = result.or(operand.evaluate(postings, universe));
+                }
+                return result;
+            }
+            case AND: {
+                // negations are subtracted from intersection of positive operands, so universe is not needed
+                List<TagExpression> excluded = new ArrayList<>();
+                PolyBitmap result = null;
+                for (TagExpression operand : operands) {
+                    if (operand.operator == Operator.NOT) {
+                        excluded.add(operand.operands.get(0));
+                        continue;
+                    }
+                    PolyBitmap bitmap = operand.evaluate(postings, universe);
+                    result = result == null ? bitmap : result.and(bitmap);
+                    if (result.isEmpty()) {
+                        return result;
+                    }
+                }
+                if (result == null) {
+                    result = universe.get();
+                }
+                for (TagExpression operand : excluded) {
+                    result = result.andNot(operand.evaluate(postings, universe));
+                }
+                return result;
+            }
+            case NOT:
+                return universe.get().andNot(operands.get(0).evaluate(postings, universe));
+            default:
+                throw new EmbeddedStorageException("Unknown tag expression operator " + operator);
+        }
+    }
+
+    private void collectTags(Set<String> tags) {
+        if (operator == Operator.TAG) {
+            tags.add(tag);
+        }
+        for (TagExpression operand : operands) {
+            operand.collectTags(tags);
+        }
+    }
+
+    private static List<TagExpression> checkOperands(TagExpression... operands) {
+        if (operands == null || operands.length == 0) {
+            throw new EmbeddedStorageException("Tag expression without operands");
+        }
+        for (TagExpression operand : operands) {
+            if (operand == null) {
+                throw new EmbeddedStorageException("Tag expression with null operand");
+            }
+        }
+        return Collections.unmodifiableList(Arrays.asList(operands));
+    }
+
+}
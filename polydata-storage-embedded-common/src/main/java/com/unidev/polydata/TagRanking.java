@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2017 Denis O <denis.o@linux.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.unidev.polydata;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Bounded ranking of most used tags of container, loaded from tag counters and updated by committed tag count changes.
+ * Counts of tags outside of ranking are not known, only their upper bound is tracked:
+ * when top tags can't be proven from ranking, ranking should be loaded again.
+ */
+public class TagRanking {
+
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    private final int capacity;
+
+    private final Map<String, Long> counts = new HashMap<>();
+
+    private final TreeSet<String> ranking = new TreeSet<>(Comparator.<String>comparingLong(counts::get).reversed().thenComparing(Comparator.naturalOrder()));
+
+    /**
+     * Upper bound of counts of tags outside of ranking, 0 when all used tags are ranked
+     */
+    private long untrackedMax;
+
+    /**
+     * @param capacity max number of ranked tags
+     * @param topCounts counts of most used tags ordered by count, up to capacity + 1 entries
+     */
+    public TagRanking(int capacity, Map<String, Long> topCounts) {
+        if (capacity <= 0) {
+            throw new EmbeddedStorageException("Tag ranking capacity should be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        for (Map.Entry<String, Long> count : topCounts.entrySet()) {
+            if (count.getValue() > 0) {
+                counts.put(count.getKey(), count.getValue());
+                ranking.add(count.getKey());
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Apply committed change of tag count
+     */
+    public synchronized void update(String tag, long delta) {
+        if (delta == 0) {
+            return;
+        }
+        Long count = counts.get(tag);
+        if (count != null) {
+            ranking.remove(tag);
+            long newCount = count + delta;
+            if (newCount > 0) {
+                counts.put(tag, newCount);
+                ranking.add(tag);
+            } else {
+                counts.remove(tag);
+            }
+        } else if (delta > 0) {
+            if (untrackedMax == 0) {
+                // all used tags are ranked, so tag was not used before
+                counts.put(tag, delta);
+                ranking.add(tag);
+            } else {
+                untrackedMax += delta;
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Most used tags ordered by count, null if ranking can't prove top k tags and should be loaded again
+     */
+    public synchronized Map<String, Long> top(int k) {
+        if (k > capacity) {
+            return null;
+        }
+        Map<String, Long> top = new LinkedHashMap<>();
+        Iterator<String> iterator = ranking.iterator();
+        while (top.size() < k && iterator.hasNext()) {
+            String tag = iterator.next();
+            long count = counts.get(tag);
+            if (count < untrackedMax) {
+                return null;
+            }
+            top.put(tag, count);
+        }
+        if (top.size() < k && untrackedMax > 0) {
+            return null;
+        }
+        return top;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private void evict() {
+        while (ranking.size() > capacity) {
+            String tag = ranking.pollLast();
+            untrackedMax = Math.max(untrackedMax, counts.remove(tag));
+        }
+    }
+
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2017 Denis O <denis.o@linux.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.unidev.polydata;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * Used tags of container with their counts, sorted by tag for prefix lookups.
+ * Loaded from tag counters and updated by committed tag count changes.
+ */
+public class TagSuggestions {
+
+    private static final Comparator<Map.Entry<String, Long>> RANK_ORDER = Comparator.<Map.Entry<String, Long>>comparingLong(Map.Entry::getValue).reversed()
+            .thenComparing(Map.Entry::getKey);
+
+    private final TreeMap<String, Long> counts = new TreeMap<>();
+
+    /**
+     * @param tagCounts counts of all used tags of container
+     */
+    public TagSuggestions(Map<String, Long> tagCounts) {
+        tagCounts.forEach(this::update);
+    }
+
+    /**
+     * Apply committed change of tag count
+     */
+    public synchronized void update(String tag, long delta) {
+        if (delta == 0) {
+            return;
+        }
+        long count = counts.getOrDefault(tag, 0L) + delta;
+        if (count > 0) {
+            counts.put(tag, count);
+        } else {
+            counts.remove(tag);
+        }
+    }
+
+    /**
+     * Most used tags starting with prefix, ordered by count
+     */
+    public synchronized Map<String, Long> suggest(String prefix, int limit) {
+        // heap of best matches with worst one on top
+        PriorityQueue<Map.Entry<String, Long>> best = new PriorityQueue<>(RANK_ORDER.reversed());
+        for (Map.Entry<String, Long> entry : counts.tailMap(prefix, true).entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                break;
+            }
+            if (best.size() < limit) {
+                best.add(entry);
+            } else if (RANK_ORDER.compare(entry, best.peek()) < 0) {
+                best.poll();
+                best.add(entry);
+            }
+        }
+        List<Map.Entry<String, Long>> matches = new ArrayList<>(best);
+        matches.sort(RANK_ORDER);
+        Map<String, Long> suggestions = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> match : matches) {
+            suggestions.put(match.getKey(), match.getValue());
+        }
+        return suggestions;
+    }
+
+    public synchronized int size() {
+        return counts.size();
+    }
+
+}
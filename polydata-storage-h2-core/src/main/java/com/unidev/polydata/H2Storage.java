@@ -1,14 +1,19 @@
 package com.unidev.polydata;
 
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.unidev.polydata.domain.BasicPoly;
 import org.apache.commons.lang3.StringUtils;
 import org.flywaydb.core.Flyway;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.math.BigDecimal;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
 
 import static com.unidev.polydata.EmbeddedPolyConstants.POLY_OBJECT_MAPPER;
 import static com.unidev.polydata.EmbeddedPolyConstants.TAGS_POLY;
@@ -25,6 +30,16 @@ public class H2Storage extends AbstractEmbeddedStorage {
         }
     }
 
+    /**
+     * Max number of ids bound in one IN statement, keeps statements and their plans small
+     */
+    public static final int MAX_STATEMENT_PARAMETERS = 1000;
+
+    /**
+     * Tag postings of polys, one row per poly and tag
+     */
+    private static final String DATA_TAG = "data_tag";
+
     private final String jdbcUrl;
 
     public H2Storage(String dbFile) {
@@ -74,6 +89,75 @@ public class H2Storage extends AbstractEmbeddedStorage {
         flyway.migrate();
     }
 
+    /**
+     * Fetch poly on storage connection: in pooled mode read is executed on pooled read connection,
+     * see enableConnectionPool
+     */
+    public Optional<BasicPoly> fetchPoly(String id) {
+        return withReadConnection(connection -> fetchPoly(connection, id));
+    }
+
+    /**
+     * Fetch polys by ids on storage connection, see fetchByIds
+     */
+    public List<BasicPoly> fetchByIds(Collection<String> polyIds) {
+        return withReadConnection(connection -> fetchByIds(connection, polyIds));
+    }
+
+    /**
+     * Count polys matching query on storage connection, see fetchPolyCount
+     */
+    public long fetchPolyCount(EmbeddedPolyQuery polyQuery) {
+        return withReadConnection(connection -> fetchPolyCount(connection, polyQuery));
+    }
+
+    /**
+     * List polys on storage connection, see listPoly
+     */
+    public List<BasicPoly> listPoly(EmbeddedPolyQuery polyQuery) {
+        return withReadConnection(connection -> listPoly(connection, polyQuery));
+    }
+
+    /**
+     * List polys page on storage connection, see listPolyPage
+     */
+    public EmbeddedPolyList listPolyPage(EmbeddedPolyQuery polyQuery) {
+        return withReadConnection(connection -> listPolyPage(connection, polyQuery));
+    }
+
+    /**
+     * Stream polys on connection held until stream is closed:
+     * in pooled mode read connection is borrowed from pool, otherwise dedicated read connection is opened
+     */
+    public Stream<BasicPoly> streamPoly(EmbeddedPolyQuery polyQuery) {
+        Connection streamConnection = borrowStreamConnection();
+        try {
+            StringBuilder query = selectPoly(EmbeddedPolyConstants.DATA_POLY + ".*", polyQuery);
+            Map<Integer, Object> params = new HashMap<>();
+            PreparedStatement preparedStatement = buildPolyQuery(polyQuery, true, streamConnection, query, params);
+            return streamStatement(streamConnection, preparedStatement, query.toString(), params,
+                rowDecoder(polyQuery), () -> releaseStreamConnection(streamConnection));
+        } catch (SQLException e) {
+            releaseStreamConnection(streamConnection);
+            LOG.warn("Failed to stream polys {}", dbFile, e);
+            throw new EmbeddedStorageException(e);
+        }
+    }
+
+    /**
+     * Persist poly on writer connection, writes are serialized
+     */
+    public BasicPoly persistPoly(BasicPoly poly) {
+        return withWriteConnection(connection -> persistPoly(connection, poly));
+    }
+
+    /**
+     * Remove poly on writer connection, writes are serialized
+     */
+    public boolean removePoly(String polyId) {
+        return withWriteConnection(connection -> removePoly(connection, polyId));
+    }
+
     @Override
     public Optional<BasicPoly> fetchPoly(Connection connection, String id) {
         return fetchRawPoly(connection, EmbeddedPolyConstants.DATA_KEY, id);
@@ -82,9 +166,10 @@ public class H2Storage extends AbstractEmbeddedStorage {
     @Override
     public Map<String, Optional<BasicPoly>> fetchPolyMap(Connection connection,
         Collection<String> polyIds) {
+        Map<String, BasicPoly> polys = fetchRawPolys(connection, EmbeddedPolyConstants.DATA_POLY, polyIds);
         Map<String, Optional<BasicPoly>> result = new HashMap<>();
         for (String id : polyIds) {
-            result.put(id, fetchPoly(connection, id));
+            result.put(id, Optional.ofNullable(polys.get(id)));
         }
         return result;
     }
@@ -92,88 +177,291 @@ public class H2Storage extends AbstractEmbeddedStorage {
     @Override
     public Collection<Optional<BasicPoly>> fetchPolys(Connection connection,
         Collection<String> polyIds) {
-        List<Optional<BasicPoly>> polys = new ArrayList<>();
+        Map<String, BasicPoly> polys = fetchRawPolys(connection, EmbeddedPolyConstants.DATA_POLY, polyIds);
+        List<Optional<BasicPoly>> result = new ArrayList<>();
         for (String id : polyIds) {
-            polys.add(fetchPoly(connection, id));
+            result.add(Optional.ofNullable(polys.get(id)));
         }
-        return polys;
+        return result;
+    }
+
+    /**
+     * Fetch polys by ids in chunked IN statements instead of one statement per id
+     *
+     * @return found polys in order of requested ids, missing ids are skipped
+     */
+    public List<BasicPoly> fetchByIds(Connection connection, Collection<String> polyIds) {
+        Map<String, BasicPoly> polys = fetchRawPolys(connection, EmbeddedPolyConstants.DATA_POLY, polyIds);
+        List<BasicPoly> result = new ArrayList<>();
+        for (String id : new LinkedHashSet<>(polyIds)) {
+            BasicPoly poly = polys.get(id);
+            if (poly != null) {
+                result.add(poly);
+            }
+        }
+        return result;
     }
 
     @Override
     public BasicPoly persistPoly(Connection connection, BasicPoly poly) {
         try {
-            String rawJSON = POLY_OBJECT_MAPPER.writeValueAsString(poly);
+            return inTransaction(connection, () -> {
+                String rawJSON = POLY_OBJECT_MAPPER.writeValueAsString(poly);
 
-            String rawTags = null;
-            Collection tags = poly.fetch(EmbeddedPolyConstants.TAGS_KEY);
-            if (tags != null) {
-                rawTags = POLY_OBJECT_MAPPER.writeValueAsString(tags);
-            }
+                String rawTags = null;
+                Collection tags = poly.fetch(EmbeddedPolyConstants.TAGS_KEY);
+                if (tags != null) {
+                    rawTags = POLY_OBJECT_MAPPER.writeValueAsString(tags);
+                }
 
-            Optional<BasicPoly> polyById = fetchRawPoly(connection, EmbeddedPolyConstants.DATA_KEY,
-                poly._id());
+                Optional<BasicPoly> polyById = fetchRawPoly(connection, EmbeddedPolyConstants.DATA_KEY,
+                    poly._id());
 
-            java.util.Date date = new java.util.Date();
-            if (!polyById.isPresent()) { // insert
-                PreparedStatement preparedStatement = connection.prepareStatement(
-                    "INSERT INTO " + EmbeddedPolyConstants.DATA_POLY
-                        + "(_id, tags, data, create_date, update_date) VALUES(?, ?, ?, ?, ?);");
-                preparedStatement.setString(1, poly._id());
-                preparedStatement.setString(2, rawTags);
-                preparedStatement.setObject(3, rawJSON);
+                java.util.Date date = new java.util.Date();
+                if (!polyById.isPresent()) { // insert
+                    PreparedStatement preparedStatement = connection.prepareStatement(
+                        "INSERT INTO " + EmbeddedPolyConstants.DATA_POLY
+                            + "(_id, tags, data, create_date, update_date, random_key) VALUES(?, ?, ?, ?, ?, RAND());");
+                    preparedStatement.setString(1, poly._id());
+                    preparedStatement.setString(2, rawTags);
+                    preparedStatement.setObject(3, rawJSON);
 
-                preparedStatement.setObject(4, date);
-                preparedStatement.setObject(5, date);
-                preparedStatement.executeUpdate();
-            } else { // update
-                PreparedStatement preparedStatement = connection.prepareStatement(
-                    "UPDATE " + EmbeddedPolyConstants.DATA_POLY
-                        + " SET tags = ?, data = ? WHERE _id = ?  ;");
-                preparedStatement.setObject(1, rawTags);
-                preparedStatement.setString(2, rawJSON);
-                preparedStatement.setString(3, poly._id());
-                preparedStatement.executeUpdate();
-            }
+                    preparedStatement.setObject(4, date);
+                    preparedStatement.setObject(5, date);
+                    preparedStatement.executeUpdate();
+                    updateCounter(connection, EmbeddedPolyConstants.COUNTER_TYPE, EmbeddedPolyConstants.DATA_POLY, 1);
+                } else { // update
+                    PreparedStatement preparedStatement = connection.prepareStatement(
+                        "UPDATE " + EmbeddedPolyConstants.DATA_POLY
+                            + " SET tags = ?, data = ?, update_date = ? WHERE _id = ?  ;");
+                    preparedStatement.setObject(1, rawTags);
+                    preparedStatement.setString(2, rawJSON);
+                    preparedStatement.setObject(3, date);
+                    preparedStatement.setString(4, poly._id());
+                    preparedStatement.executeUpdate();
+                }
+                updateTagPostings(connection, poly._id(), tags);
+                return poly;
+            });
         } catch (Exception e) {
             LOG.error("Failed to persist poly {}", poly, e);
             throw new EmbeddedStorageException(e);
         }
-        return poly;
     }
 
+    /**
+     * Replace tag postings of poly with its current tags
+     */
+    private void updateTagPostings(Connection connection, String polyId, Collection<?> tags)
+        throws SQLException {
+        PreparedStatement deleteStatement = connection.prepareStatement(
+            "DELETE FROM " + DATA_TAG + " WHERE poly_id IN (SELECT id FROM "
+                + EmbeddedPolyConstants.DATA_POLY + " WHERE _id = ?)");
+        deleteStatement.setString(1, polyId);
+        deleteStatement.executeUpdate();
+        if (tags == null || tags.isEmpty()) {
+            return;
+        }
+        PreparedStatement insertStatement = connection.prepareStatement(
+            "INSERT INTO " + DATA_TAG + " (poly_id, tag) SELECT id, ? FROM "
+                + EmbeddedPolyConstants.DATA_POLY + " WHERE _id = ?");
+        for (Object tag : new LinkedHashSet<>(tags)) {
+            insertStatement.setString(1, String.valueOf(tag));
+            insertStatement.setString(2, polyId);
+            insertStatement.addBatch();
+        }
+        insertStatement.executeBatch();
+    }
+
+    /**
+     * Recreate tag postings from tags column of all polys
+     */
+    public void rebuildTagPostings(Connection connection) {
+        try {
+            inTransaction(connection, () -> insertTagPostings(connection));
+        } catch (Exception e) {
+            LOG.warn("Failed to rebuild tag postings {}", dbFile, e);
+            throw new EmbeddedStorageException(e);
+        }
+    }
+
+    /**
+     * Replace tag postings with postings from tags column of all polys, executed in transaction of caller.
+     * Used by tag postings backfill migration of storages created before tag postings.
+     */
+    public static int[] insertTagPostings(Connection connection) throws Exception {
+        connection.prepareStatement("DELETE FROM " + DATA_TAG).executeUpdate();
+        PreparedStatement insertStatement = connection.prepareStatement(
+            "INSERT INTO " + DATA_TAG + " (poly_id, tag) VALUES(?, ?)");
+        ResultSet resultSet = connection.prepareStatement(
+            "SELECT id, tags FROM " + EmbeddedPolyConstants.DATA_POLY + " WHERE tags IS NOT NULL")
+            .executeQuery();
+        while (resultSet.next()) {
+            Collection<?> tags = POLY_OBJECT_MAPPER.readValue(resultSet.getString("tags"), Collection.class);
+            for (Object tag : new LinkedHashSet<>(tags)) {
+                insertStatement.setLong(1, resultSet.getLong("id"));
+                insertStatement.setString(2, String.valueOf(tag));
+                insertStatement.addBatch();
+            }
+        }
+        return insertStatement.executeBatch();
+    }
+
+    /**
+     * Count polys matching query, count of all polys is served from counters
+     * and count of filtered polys is evaluated with same filters as listPoly
+     */
     @Override
     public long fetchPolyCount(Connection connection, EmbeddedPolyQuery polyQuery) {
+        if (isUnfiltered(polyQuery)) {
+            return fetchCounter(connection, EmbeddedPolyConstants.COUNTER_TYPE, EmbeddedPolyConstants.DATA_POLY);
+        }
         try {
             PreparedStatement preparedStatement;
-            StringBuilder query = new StringBuilder(
-                "SELECT COUNT(*) AS count FROM " + EmbeddedPolyConstants.DATA_POLY + " WHERE 1=1 ");
-            preparedStatement = buildPolyQuery(polyQuery, false, connection, query);
+            StringBuilder query = selectPoly("COUNT(*) AS count", polyQuery);
+            Map<Integer, Object> params = new HashMap<>();
+            preparedStatement = buildPolyQuery(polyQuery, false, connection, query, params);
+            long start = System.nanoTime();
             ResultSet resultSet = preparedStatement.executeQuery();
             resultSet.next();
-            return resultSet.getLong("count");
+            long count = resultSet.getLong("count");
+            recordStatement(connection, query.toString(), params, 1, start);
+            return count;
         } catch (Exception e) {
             LOG.warn("Failed to fetch polys {}", dbFile, e);
             throw new EmbeddedStorageException(e);
         }
     }
 
+    /**
+     * Check if query matches all polys, so its count can be served from counters.
+     * Every filter of query should be checked here, otherwise filtered count would bypass it.
+     */
+    private static boolean isUnfiltered(EmbeddedPolyQuery polyQuery) {
+        return polyQuery.getTag() == null
+            && polyQuery.getTagExpression() == null
+            && polyQuery.getTextQuery() == null
+            && (polyQuery.getPredicates() == null || polyQuery.getPredicates().isEmpty())
+            && polyQuery.getCreatedSince() == null && polyQuery.getCreatedUntil() == null
+            && polyQuery.getUpdatedSince() == null && polyQuery.getUpdatedUntil() == null;
+    }
+
     @Override
     public List<BasicPoly> listPoly(Connection connection, EmbeddedPolyQuery polyQuery) {
         try {
+            if (Boolean.TRUE.equals(polyQuery.getRandomOrder()) && polyQuery.getItemPerPage() != null) {
+                return sampleRandomPoly(connection, polyQuery);
+            }
             PreparedStatement preparedStatement;
-            StringBuilder query = new StringBuilder(
-                "SELECT * FROM " + EmbeddedPolyConstants.DATA_POLY + " WHERE 1=1 ");
-            preparedStatement = buildPolyQuery(polyQuery, true, connection, query);
-            return evaluateStatementToPolyList(preparedStatement);
+            StringBuilder query = selectPoly(EmbeddedPolyConstants.DATA_POLY + ".*", polyQuery);
+            Map<Integer, Object> params = new HashMap<>();
+            preparedStatement = buildPolyQuery(polyQuery, true, connection, query, params);
+            long start = System.nanoTime();
+            List<BasicPoly> polys = evaluateStatementToPolyList(preparedStatement, rowDecoder(polyQuery));
+            recordStatement(connection, query.toString(), params, polys.size(), start);
+            return polys;
         } catch (Exception e) {
             LOG.warn("Failed to fetch polys {}", dbFile, e);
             throw new EmbeddedStorageException(e);
         }
     }
 
+    /**
+     * List polys page, continuation token of next page is returned with result
+     */
+    public EmbeddedPolyList listPolyPage(Connection connection, EmbeddedPolyQuery polyQuery) {
+        try {
+            if (Boolean.TRUE.equals(polyQuery.getRandomOrder()) && polyQuery.getItemPerPage() != null) {
+                EmbeddedPolyList polyList = EmbeddedPolyList.newList();
+                sampleRandomPoly(connection, polyQuery).forEach(polyList::add);
+                return polyList;
+            }
+            PreparedStatement preparedStatement;
+            StringBuilder query = selectPoly(EmbeddedPolyConstants.DATA_POLY + ".*", polyQuery);
+            Map<Integer, Object> params = new HashMap<>();
+            preparedStatement = buildPolyQuery(polyQuery, true, connection, query, params);
+            long start = System.nanoTime();
+            EmbeddedPolyList polyList = EmbeddedPolyList.newList();
+            EmbeddedPolyCursor cursor = null;
+            EmbeddedPolyIterator.RowDecoder decoder = rowDecoder(polyQuery);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    polyList.add(decoder.decode(resultSet));
+                    cursor = new EmbeddedPolyCursor(resultSet.getString(PolySort.of(polyQuery).getColumn()),
+                        resultSet.getLong("id"));
+                }
+            }
+            recordStatement(connection, query.toString(), params, polyList.list().size(), start);
+            if (cursor != null && polyQuery.getItemPerPage() != null
+                && polyList.list().size() == polyQuery.getItemPerPage()) {
+                polyList.setContinuationToken(cursor.encode());
+            }
+            return polyList;
+        } catch (Exception e) {
+            LOG.warn("Failed to fetch polys {}", dbFile, e);
+            throw new EmbeddedStorageException(e);
+        }
+    }
+
+    /**
+     * Stream polys matching query, polys are decoded as stream is consumed. Without page size all polys are streamed.
+     * Statement is closed when stream is closed or fully consumed, connection is left open.
+     */
+    public Stream<BasicPoly> streamPoly(Connection connection, EmbeddedPolyQuery polyQuery) {
+        try {
+            StringBuilder query = selectPoly(EmbeddedPolyConstants.DATA_POLY + ".*", polyQuery);
+            Map<Integer, Object> params = new HashMap<>();
+            PreparedStatement preparedStatement = buildPolyQuery(polyQuery, true, connection, query, params);
+            return streamStatement(connection, preparedStatement, query.toString(), params, rowDecoder(polyQuery), null);
+        } catch (SQLException e) {
+            LOG.warn("Failed to stream polys {}", dbFile, e);
+            throw new EmbeddedStorageException(e);
+        }
+    }
+
     @Override
     public boolean removePoly(Connection connection, String polyId) {
-        return removeRawPoly(connection, EmbeddedPolyConstants.DATA_POLY, polyId);
+        return inTransaction(connection, () -> {
+            updateTagPostings(connection, polyId, null);
+            boolean removed = removeRawPoly(connection, EmbeddedPolyConstants.DATA_POLY, polyId);
+            if (removed) {
+                updateCounter(connection, EmbeddedPolyConstants.COUNTER_TYPE, EmbeddedPolyConstants.DATA_POLY, -1);
+            }
+            return removed;
+        });
+    }
+
+    /**
+     * Compare poly counter with actual number of polys
+     *
+     * @return true if counter matches
+     */
+    public boolean verifyCounters(Connection connection) {
+        long counter = fetchCounter(connection, EmbeddedPolyConstants.COUNTER_TYPE, EmbeddedPolyConstants.DATA_POLY);
+        long actual = fetchPolyCount(connection, EmbeddedPolyConstants.DATA_POLY);
+        if (counter != actual) {
+            LOG.warn("Poly counter of {} is {}, actual count {}", dbFile, counter, actual);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Recalculate poly counter from data table
+     */
+    public void rebuildCounters(Connection connection) {
+        try {
+            PreparedStatement preparedStatement = connection.prepareStatement(
+                "MERGE INTO " + EmbeddedPolyConstants.POLY_COUNTER
+                    + " (kind, name, count) KEY (kind, name) SELECT ?, ?, COUNT(*) FROM "
+                    + EmbeddedPolyConstants.DATA_POLY);
+            preparedStatement.setString(1, EmbeddedPolyConstants.COUNTER_TYPE);
+            preparedStatement.setString(2, EmbeddedPolyConstants.DATA_POLY);
+            preparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            LOG.warn("Failed to rebuild counters {}", dbFile, e);
+            throw new EmbeddedStorageException(e);
+        }
     }
 
     @Override
@@ -232,15 +520,37 @@ public class H2Storage extends AbstractEmbeddedStorage {
             prefix = tagStorage + ".";
         }
         try {
-            PreparedStatement preparedStatement = connection.prepareStatement(
-                "SELECT * FROM " + prefix + EmbeddedPolyConstants.TAGS_POLY + " ORDER BY count DESC");
-            return evaluateStatementToPolyList(preparedStatement);
+            String query = "SELECT * FROM " + prefix + EmbeddedPolyConstants.TAGS_POLY + " ORDER BY count DESC";
+            PreparedStatement preparedStatement = connection.prepareStatement(query);
+            long start = System.nanoTime();
+            List<BasicPoly> tags = evaluateStatementToPolyList(preparedStatement,
+                EmbeddedPolyIterator.DATA_DECODER);
+            recordStatement(connection, query, Collections.emptyMap(), tags.size(), start);
+            return tags;
         } catch (SQLException e) {
             LOG.warn("Failed to fetch tags", e);
             return Collections.EMPTY_LIST;
         }
     }
 
+    /**
+     * Stream tags ordered by count, see streamPoly
+     */
+    public Stream<BasicPoly> streamTags(Connection connection, String tagStorage) {
+        String prefix = "";
+        if (StringUtils.isNotBlank(tagStorage)) {
+            prefix = tagStorage + ".";
+        }
+        try {
+            String query = "SELECT * FROM " + prefix + EmbeddedPolyConstants.TAGS_POLY + " ORDER BY count DESC";
+            return streamStatement(connection, connection.prepareStatement(query), query, Collections.emptyMap(),
+                EmbeddedPolyIterator.DATA_DECODER, null);
+        } catch (SQLException e) {
+            LOG.warn("Failed to stream tags", e);
+            throw new EmbeddedStorageException(e);
+        }
+    }
+
     @Override
     public Optional<BasicPoly> fetchTagPoly(Connection connection, String id) {
         return fetchTagPoly(connection, null, id);
@@ -302,15 +612,33 @@ public class H2Storage extends AbstractEmbeddedStorage {
     @Override
     public List<BasicPoly> fetchTagIndex(Connection connection, String tagIndex) {
         try {
-            PreparedStatement preparedStatement = connection.prepareStatement(
-                "SELECT * FROM " + tagIndex + ".tag_index" + "  ORDER BY update_date DESC ");
-            return evaluateStatementToPolyList(preparedStatement);
+            String query = "SELECT * FROM " + tagIndex + ".tag_index" + "  ORDER BY update_date DESC ";
+            PreparedStatement preparedStatement = connection.prepareStatement(query);
+            long start = System.nanoTime();
+            List<BasicPoly> tagIndexPolys = evaluateStatementToPolyList(preparedStatement,
+                EmbeddedPolyIterator.DATA_DECODER);
+            recordStatement(connection, query, Collections.emptyMap(), tagIndexPolys.size(), start);
+            return tagIndexPolys;
         } catch (SQLException e) {
             LOG.warn("Failed to fetch tags", e);
             return Collections.EMPTY_LIST;
         }
     }
 
+    /**
+     * Stream tag index records, see streamPoly
+     */
+    public Stream<BasicPoly> streamTagIndex(Connection connection, String tagIndex) {
+        try {
+            String query = "SELECT * FROM " + tagIndex + ".tag_index" + "  ORDER BY update_date DESC ";
+            return streamStatement(connection, connection.prepareStatement(query), query, Collections.emptyMap(),
+                EmbeddedPolyIterator.DATA_DECODER, null);
+        } catch (SQLException e) {
+            LOG.warn("Failed to stream tag index {}", tagIndex, e);
+            throw new EmbeddedStorageException(e);
+        }
+    }
+
     @Override
     public Optional<BasicPoly> fetchTagIndexPoly(Connection connection, String tagIndex,
         String documentId) {
@@ -326,11 +654,14 @@ public class H2Storage extends AbstractEmbeddedStorage {
     public Long fetchPolyCount(Connection connection, String table) {
         PreparedStatement preparedStatement;
         try {
-            preparedStatement = connection
-                .prepareStatement("SELECT COUNT(*) AS item_count FROM " + table + "");
+            String query = "SELECT COUNT(*) AS item_count FROM " + table + "";
+            preparedStatement = connection.prepareStatement(query);
+            long start = System.nanoTime();
             ResultSet resultSet = preparedStatement.executeQuery();
             resultSet.next();
-            return resultSet.getLong("item_count");
+            long count = resultSet.getLong("item_count");
+            recordStatement(connection, query, Collections.emptyMap(), 1, start);
+            return count;
         } catch (SQLException e) {
             LOG.warn("Failed to fetch poly count from {}", table, e);
             throw new EmbeddedStorageException(e);
@@ -341,11 +672,14 @@ public class H2Storage extends AbstractEmbeddedStorage {
     public Optional<BasicPoly> fetchRawPoly(Connection connection, String table, String id) {
         PreparedStatement preparedStatement;
         try {
-            preparedStatement = connection
-                .prepareStatement("SELECT * FROM " + table + " WHERE _id = ?");
+            String query = "SELECT * FROM " + table + " WHERE _id = ?";
+            preparedStatement = connection.prepareStatement(query);
             preparedStatement.setString(1, id);
+            long start = System.nanoTime();
             ResultSet resultSet = preparedStatement.executeQuery();
-            if (resultSet.next()) {
+            boolean found = resultSet.next();
+            recordStatement(connection, query, Collections.singletonMap(1, id), found ? 1 : 0, start);
+            if (found) {
                 String rawJSON = resultSet.getString(EmbeddedPolyConstants.DATA_KEY);
                 return Optional.of(POLY_OBJECT_MAPPER.readValue(rawJSON, BasicPoly.class));
             }
@@ -356,6 +690,38 @@ public class H2Storage extends AbstractEmbeddedStorage {
         }
     }
 
+    /**
+     * Fetch records by distinct ids, ids are queried in chunks of MAX_STATEMENT_PARAMETERS
+     *
+     * @return map of id to record, missing records are not included
+     */
+    public Map<String, BasicPoly> fetchRawPolys(Connection connection, String table, Collection<String> ids) {
+        Map<String, BasicPoly> polys = new HashMap<>();
+        List<String> idList = new ArrayList<>(new LinkedHashSet<>(ids));
+        for (int from = 0; from < idList.size(); from += MAX_STATEMENT_PARAMETERS) {
+            List<String> idChunk = idList.subList(from, Math.min(from + MAX_STATEMENT_PARAMETERS, idList.size()));
+            StringBuilder query = new StringBuilder("SELECT _id, data FROM " + table + " WHERE _id IN (");
+            for (int i = 0; i < idChunk.size(); i++) {
+                query.append(i == 0 ? "?" : ", ?");
+            }
+            query.append(")");
+            try (PreparedStatement preparedStatement = connection.prepareStatement(query.toString())) {
+                for (int i = 0; i < idChunk.size(); i++) {
+                    preparedStatement.setString(i + 1, idChunk.get(i));
+                }
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        polys.put(resultSet.getString(1), POLY_OBJECT_MAPPER.readValue(resultSet.getString(2), BasicPoly.class));
+                    }
+                }
+            } catch (Exception e) {
+                LOG.warn("Failed to fetch polys {} {}", table, dbFile, e);
+                throw new EmbeddedStorageException(e);
+            }
+        }
+        return polys;
+    }
+
     @Override
     public boolean removeRawPoly(Connection connection, String table, String id) {
         try {
@@ -373,29 +739,160 @@ public class H2Storage extends AbstractEmbeddedStorage {
         return jdbcUrl;
     }
 
+    /**
+     * Declare index on top level poly field: field is extracted to computed text column and numeric column, both indexed.
+     * Predicates with numeric values are compared with numeric column, like json_extract values in SQLite,
+     * other predicates are compared as text. Predicates on field require declared index,
+     * index declared before numeric columns existed is completed by declaring it again.
+     */
+    public void createFieldIndex(Connection connection, String field) {
+        PolyProjection.checkField(field);
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("ALTER TABLE " + EmbeddedPolyConstants.DATA_POLY
+                + " ADD COLUMN IF NOT EXISTS " + fieldColumn(field) + " VARCHAR AS JSON_FIELD(data, '"
+                + field + "')");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS \"field_" + field + "_idx\" ON "
+                + EmbeddedPolyConstants.DATA_POLY + " (" + fieldColumn(field) + ")");
+            statement.executeUpdate("ALTER TABLE " + EmbeddedPolyConstants.DATA_POLY
+                + " ADD COLUMN IF NOT EXISTS " + numberFieldColumn(field) + " DECIMAL AS JSON_NUMBER(data, '"
+                + field + "')");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS \"field_" + field + "_number_idx\" ON "
+                + EmbeddedPolyConstants.DATA_POLY + " (" + numberFieldColumn(field) + ")");
+        } catch (SQLException e) {
+            LOG.warn("Failed to create field index {} {}", field, dbFile, e);
+            throw new EmbeddedStorageException(e);
+        }
+    }
+
+    public void dropFieldIndex(Connection connection, String field) {
+        PolyProjection.checkField(field);
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("DROP INDEX IF EXISTS \"field_" + field + "_idx\"");
+            statement.executeUpdate("ALTER TABLE " + EmbeddedPolyConstants.DATA_POLY
+                + " DROP COLUMN IF EXISTS " + fieldColumn(field));
+            statement.executeUpdate("DROP INDEX IF EXISTS \"field_" + field + "_number_idx\"");
+            statement.executeUpdate("ALTER TABLE " + EmbeddedPolyConstants.DATA_POLY
+                + " DROP COLUMN IF EXISTS " + numberFieldColumn(field));
+        } catch (SQLException e) {
+            LOG.warn("Failed to drop field index {} {}", field, dbFile, e);
+            throw new EmbeddedStorageException(e);
+        }
+    }
+
+    /**
+     * Extract top level field of poly JSON as text, registered in database as JSON_FIELD function
+     */
+    public static String jsonField(String data, String field) {
+        JsonNode value = jsonValue(data, field);
+        if (value == null) {
+            return null;
+        }
+        return value.isValueNode() ? value.asText() : value.toString();
+    }
+
+    /**
+     * Extract top level numeric field of poly JSON, null for other values, registered in database as JSON_NUMBER function
+     */
+    public static BigDecimal jsonNumber(String data, String field) {
+        JsonNode value = jsonValue(data, field);
+        return value != null && value.isNumber() ? value.decimalValue() : null;
+    }
+
+    private static JsonNode jsonValue(String data, String field) {
+        if (data == null) {
+            return null;
+        }
+        try {
+            JsonNode value = POLY_OBJECT_MAPPER.readTree(data).get(field);
+            return value == null || value.isNull() ? null : value;
+        } catch (IOException e) {
+            LOG.warn("Failed to extract field {}", field, e);
+            return null;
+        }
+    }
+
+    private static String fieldColumn(String field) {
+        return "\"field_" + field + "\"";
+    }
+
+    private static String numberFieldColumn(String field) {
+        return "\"field_" + field + "_number\"";
+    }
+
+    private long fetchCounter(Connection connection, String kind, String name) {
+        try {
+            PreparedStatement preparedStatement = connection.prepareStatement(
+                "SELECT count FROM " + EmbeddedPolyConstants.POLY_COUNTER + " WHERE kind = ? AND name = ?");
+            preparedStatement.setString(1, kind);
+            preparedStatement.setString(2, name);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong("count") : 0L;
+            }
+        } catch (SQLException e) {
+            LOG.warn("Failed to fetch counter {} {}", kind, name, e);
+            throw new EmbeddedStorageException(e);
+        }
+    }
+
+    /**
+     * Add delta to counter, missing counter is created
+     */
+    private void updateCounter(Connection connection, String kind, String name, long delta) {
+        try {
+            PreparedStatement updateStatement = connection.prepareStatement(
+                "UPDATE " + EmbeddedPolyConstants.POLY_COUNTER
+                    + " SET count = count + ? WHERE kind = ? AND name = ?");
+            updateStatement.setLong(1, delta);
+            updateStatement.setString(2, kind);
+            updateStatement.setString(3, name);
+            if (updateStatement.executeUpdate() == 0) {
+                PreparedStatement insertStatement = connection.prepareStatement(
+                    "INSERT INTO " + EmbeddedPolyConstants.POLY_COUNTER
+                        + " (kind, name, count) VALUES(?, ?, ?)");
+                insertStatement.setString(1, kind);
+                insertStatement.setString(2, name);
+                insertStatement.setLong(3, delta);
+                insertStatement.executeUpdate();
+            }
+        } catch (SQLException e) {
+            LOG.warn("Failed to update counter {} {}", kind, name, e);
+            throw new EmbeddedStorageException(e);
+        }
+    }
+
+    /**
+     * Build statement of poly query, bound parameters are collected in params
+     */
     private PreparedStatement buildPolyQuery(EmbeddedPolyQuery sqlitePolyQuery,
-        boolean includePagination, Connection connection, StringBuilder query) throws SQLException {
-        Integer id = 1;
-        Map<Integer, Object> params = new HashMap<>();
+        boolean includePagination, Connection connection, StringBuilder query,
+        Map<Integer, Object> params) throws SQLException {
         PreparedStatement preparedStatement;
 
-        if (sqlitePolyQuery.getTag() != null) {
-            query.append(" AND " + EmbeddedPolyConstants.TAGS_KEY + " LIKE ?");
-            params.put(id++, "%" + sqlitePolyQuery.getTag() + "%");
-        }
+        Integer id = appendFilters(sqlitePolyQuery, query, params);
 
         if (includePagination) {
             if (sqlitePolyQuery.getItemPerPage() != null) {
+                PolySort sort = PolySort.of(sqlitePolyQuery);
+                String order = " ORDER BY " + sort.getColumn() + " " + sort.direction() + ", id " + sort.direction() + " ";
 
-                if (Boolean.TRUE.equals(sqlitePolyQuery.getRandomOrder())) {
-                    query.append(" ORDER BY RANDOM() ");
+                if (sqlitePolyQuery.getContinuationToken() != null) {
+                    EmbeddedPolyCursor cursor = EmbeddedPolyCursor
+                        .decode(sqlitePolyQuery.getContinuationToken());
+                    String after = sort.isDescending() ? " < ?" : " > ?";
+                    query.append(" AND " + sort.getColumn() + (sort.isDescending() ? " <= ?" : " >= ?")
+                        + " AND (" + sort.getColumn() + after + " OR id" + after + ") ");
+                    params.put(id++, cursor.getSortDate());
+                    params.put(id++, cursor.getSortDate());
+                    params.put(id++, cursor.getId());
+                    query.append(order);
+                    query.append("  LIMIT ?");
+                    params.put(id++, sqlitePolyQuery.getItemPerPage());
                 } else {
-                    query.append(" ORDER BY update_date DESC ");
+                    query.append(order);
+                    query.append("  LIMIT ? OFFSET ?");
+                    params.put(id++, sqlitePolyQuery.getItemPerPage());
+                    params.put(id++, sqlitePolyQuery.getItemPerPage() * (sqlitePolyQuery.getPage()));
                 }
-
-                query.append("  LIMIT ? OFFSET ?");
-                params.put(id++, sqlitePolyQuery.getItemPerPage());
-                params.put(id++, sqlitePolyQuery.getItemPerPage() * (sqlitePolyQuery.getPage()));
             }
         }
 
@@ -406,16 +903,136 @@ public class H2Storage extends AbstractEmbeddedStorage {
         return preparedStatement;
     }
 
-    private List<BasicPoly> evaluateStatementToPolyList(PreparedStatement preparedStatement) {
+    /**
+     * Start poly query, tag filter is served by join of tag postings index
+     * and its parameter is bound first by appendFilters
+     */
+    private StringBuilder selectPoly(String columns, EmbeddedPolyQuery polyQuery) {
+        StringBuilder query = new StringBuilder("SELECT " + columns + " FROM ");
+        if (polyQuery.getTag() != null) {
+            query.append(DATA_TAG + " JOIN " + EmbeddedPolyConstants.DATA_POLY + " ON "
+                + EmbeddedPolyConstants.DATA_POLY + ".id = " + DATA_TAG + ".poly_id AND " + DATA_TAG + ".tag = ?");
+        } else {
+            query.append(EmbeddedPolyConstants.DATA_POLY);
+        }
+        return query.append(" WHERE 1=1 ");
+    }
+
+    /**
+     * Append query filters to query started by selectPoly
+     *
+     * @return index of next statement parameter
+     */
+    private Integer appendFilters(EmbeddedPolyQuery sqlitePolyQuery, StringBuilder query,
+        Map<Integer, Object> params) {
+        Integer id = params.size() + 1;
+        if (sqlitePolyQuery.getTag() != null) {
+            params.put(id++, sqlitePolyQuery.getTag());
+        }
+        id = appendDateCondition(query, params, id, "create_date >= ?", sqlitePolyQuery.getCreatedSince());
+        id = appendDateCondition(query, params, id, "create_date < ?", sqlitePolyQuery.getCreatedUntil());
+        id = appendDateCondition(query, params, id, "update_date >= ?", sqlitePolyQuery.getUpdatedSince());
+        id = appendDateCondition(query, params, id, "update_date < ?", sqlitePolyQuery.getUpdatedUntil());
+        if (sqlitePolyQuery.getPredicates() != null) {
+            for (PolyPredicate predicate : sqlitePolyQuery.getPredicates()) {
+                boolean numeric = predicate.getValues().stream().allMatch(value -> value instanceof Number);
+                query.append(" AND ").append(predicate.toSql(numeric ? numberFieldColumn(predicate.getField())
+                    : fieldColumn(predicate.getField())));
+                for (Object value : predicate.getValues()) {
+                    params.put(id++, numeric ? new BigDecimal(value.toString()) : String.valueOf(value));
+                }
+            }
+        }
+        return id;
+    }
+
+    private Integer appendDateCondition(StringBuilder query, Map<Integer, Object> params, Integer id,
+        String condition, java.util.Date date) {
+        if (date != null) {
+            query.append(" AND ").append(condition);
+            params.put(id++, new Timestamp(date.getTime()));
+        }
+        return id;
+    }
+
+    /**
+     * Sample random polys through random_key index: records are read in random_key order from
+     * random pivot, wrapping around to lowest keys when pivot is close to the end. If query has
+     * random seed, pivot is derived from seed and page so pages are reproducible.
+     */
+    private List<BasicPoly> sampleRandomPoly(Connection connection, EmbeddedPolyQuery polyQuery)
+        throws SQLException {
+        long page = polyQuery.getPage() == null ? 0L : polyQuery.getPage();
+        double pivot = polyQuery.getRandomSeed() != null
+            ? new Random(polyQuery.getRandomSeed() * 31 + page).nextDouble()
+            : ThreadLocalRandom.current().nextDouble();
+
+        List<BasicPoly> polyList = new ArrayList<>();
+        for (String range : new String[]{" AND random_key >= ? ", " AND random_key < ? "}) {
+            long limit = polyQuery.getItemPerPage() - polyList.size();
+            if (limit <= 0) {
+                break;
+            }
+            StringBuilder query = selectPoly(EmbeddedPolyConstants.DATA_POLY + ".*", polyQuery);
+            Map<Integer, Object> params = new HashMap<>();
+            Integer id = appendFilters(polyQuery, query, params);
+            query.append(range).append(" ORDER BY random_key LIMIT ?");
+            params.put(id++, pivot);
+            params.put(id++, limit);
+
+            PreparedStatement preparedStatement = connection.prepareStatement(query.toString());
+            for (Map.Entry<Integer, Object> entry : params.entrySet()) {
+                preparedStatement.setObject(entry.getKey(), entry.getValue());
+            }
+            long start = System.nanoTime();
+            List<BasicPoly> sample = evaluateStatementToPolyList(preparedStatement, rowDecoder(polyQuery));
+            recordStatement(connection, query.toString(), params, sample.size(), start);
+            polyList.addAll(sample);
+        }
+        return polyList;
+    }
+
+    /**
+     * Decoder of query rows, H2 has no JSON functions so projected fields are picked while parsing data
+     */
+    private EmbeddedPolyIterator.RowDecoder rowDecoder(EmbeddedPolyQuery polyQuery) {
+        if (polyQuery.getFields() == null) {
+            return EmbeddedPolyIterator.DATA_DECODER;
+        }
+        PolyProjection projection = new PolyProjection(polyQuery.getFields());
+        return resultSet -> projection.decode(resultSet.getString(EmbeddedPolyConstants.DATA_KEY));
+    }
+
+    /**
+     * Stream results of prepared statement, statement execution is recorded in slow statement log
+     * without row count, since rows are read as stream is consumed
+     *
+     * @param onClose executed after statement is closed, may be null
+     */
+    private Stream<BasicPoly> streamStatement(Connection connection, PreparedStatement preparedStatement,
+        String query, Map<Integer, Object> params, EmbeddedPolyIterator.RowDecoder decoder, Runnable onClose)
+        throws SQLException {
+        preparedStatement.setFetchSize(fetchSize);
+        try {
+            long start = System.nanoTime();
+            EmbeddedPolyIterator iterator = new EmbeddedPolyIterator(preparedStatement, decoder, onClose);
+            recordStatement(connection, query, params, 0, start);
+            return iterator.stream();
+        } catch (SQLException e) {
+            preparedStatement.close();
+            throw e;
+        }
+    }
+
+    private List<BasicPoly> evaluateStatementToPolyList(PreparedStatement preparedStatement,
+        EmbeddedPolyIterator.RowDecoder decoder) {
 
         List<BasicPoly> polyList = new ArrayList<>();
         try {
             ResultSet resultSet = preparedStatement.executeQuery();
 
             while (resultSet.next()) {
-                String rawJSON = resultSet.getString(EmbeddedPolyConstants.DATA_KEY);
-                BasicPoly polyRecord = POLY_OBJECT_MAPPER.readValue(rawJSON, BasicPoly.class);
-                polyList.add(polyRecord);
+                polyList.add(decoder.decode(resultSet));
             }
             return polyList;
         } catch (Exception e) {
@@ -0,0 +1,18 @@
+package db.polystorage;
+
+import com.unidev.polydata.H2Storage;
+import org.flywaydb.core.api.migration.jdbc.JdbcMigration;
+
+import java.sql.Connection;
+
+/**
+ * Backfill tag postings of storages created before data_tag table, runs once after V1.0.8
+ */
+public class V1_0_8_1__data_tag_backfill implements JdbcMigration {
+
+    @Override
+    public void migrate(Connection connection) throws Exception {
+        H2Storage.insertTagPostings(connection);
+    }
+
+}
@@ -0,0 +1,4 @@
+ALTER TABLE data ADD random_key DOUBLE;
+UPDATE data SET random_key = RAND();
+
+CREATE INDEX random_key_idx ON data (random_key);
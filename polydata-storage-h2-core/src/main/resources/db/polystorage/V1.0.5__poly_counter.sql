@@ -0,0 +1,8 @@
+CREATE TABLE poly_counter (
+  kind VARCHAR(64),
+  name VARCHAR(255),
+  count BIGINT,
+  PRIMARY KEY (kind, name)
+);
+
+INSERT INTO poly_counter (kind, name, count) SELECT 'type', 'data', COUNT(*) FROM data;
@@ -0,0 +1 @@
+CREATE ALIAS IF NOT EXISTS JSON_FIELD DETERMINISTIC FOR "com.unidev.polydata.H2Storage.jsonField";
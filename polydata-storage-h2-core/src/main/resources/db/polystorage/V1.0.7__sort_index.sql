@@ -0,0 +1,3 @@
+DROP INDEX IF EXISTS update_date_idx;
+CREATE INDEX update_date_idx ON data (update_date, id);
+CREATE INDEX create_date_idx ON data (create_date, id);
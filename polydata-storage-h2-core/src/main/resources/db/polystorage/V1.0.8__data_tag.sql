@@ -0,0 +1,7 @@
+CREATE TABLE data_tag (
+  poly_id INTEGER,
+  tag VARCHAR(255),
+  PRIMARY KEY (poly_id, tag)
+);
+
+CREATE INDEX data_tag_idx ON data_tag (tag, poly_id);
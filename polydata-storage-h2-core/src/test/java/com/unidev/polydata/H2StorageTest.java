@@ -9,7 +9,10 @@ import org.junit.Test;
 
 import java.io.File;
 import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
 import java.util.*;
+import java.util.stream.Stream;
 
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.MatcherAssert.*;
@@ -37,6 +40,35 @@ public class H2StorageTest {
         h2Storage.migrateStorage();
     }
 
+    @Test
+    public void testTagPostingsBackfillRunsOnce() throws Exception {
+        H2Storage h2Storage = new H2Storage(dbFile.getAbsolutePath());
+        h2Storage.migrateStorage();
+
+        try (Connection connection = h2Storage.openDb(); Statement statement = connection.createStatement()) {
+            h2Storage.persistPoly(connection, BasicPoly.newPoly("potato").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("123", "xyz")));
+            // storage migrated before tag postings
+            statement.executeUpdate("DELETE FROM data_tag");
+            statement.executeUpdate("DELETE FROM \"schema_version\" WHERE \"version\" = '1.0.8.1'");
+        }
+        h2Storage.migrateStorage();
+        assertThat(fetchTagPostingCount(h2Storage), is(2L));
+
+        try (Connection connection = h2Storage.openDb(); Statement statement = connection.createStatement()) {
+            statement.executeUpdate("DELETE FROM data_tag");
+        }
+        h2Storage.migrateStorage();
+        assertThat(fetchTagPostingCount(h2Storage), is(0L));
+    }
+
+    private long fetchTagPostingCount(H2Storage h2Storage) throws SQLException {
+        try (Connection connection = h2Storage.openDb(); Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM data_tag")) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
     @Test
     public void testPersistingPoly() throws Exception {
         H2Storage h2Storage = new H2Storage(dbFile.getAbsolutePath());
@@ -88,6 +120,10 @@ public class H2StorageTest {
             assertThat(fetchPolyMap.get("potato").isPresent(), is(true));
             assertThat(fetchPolyMap.get("potato").get()._id(), is("potato"));
 
+            List<BasicPoly> polysById = h2Storage.fetchByIds(connection, Arrays.asList("random-id", "potato", "potato"));
+            assertThat(polysById.size(), is(1));
+            assertThat(polysById.get(0)._id(), is("potato"));
+
 
         }catch (Exception e) {
             throw e;
@@ -130,6 +166,11 @@ public class H2StorageTest {
             long count2 = storage.fetchPolyCount(connection, tagQuery2);
             assertThat(count2, is(0L));
 
+            EmbeddedPolyQuery prefixTagQuery = new EmbeddedPolyQuery();
+            prefixTagQuery.setTag("tag");
+            assertThat(storage.listPoly(connection, prefixTagQuery).size(), is(0));
+            assertThat(storage.fetchPolyCount(connection, prefixTagQuery), is(0L));
+
             EmbeddedPolyQuery pageQuery = new EmbeddedPolyQuery();
             pageQuery.setPage(0L);
             pageQuery.setItemPerPage(1L);
@@ -153,6 +194,119 @@ public class H2StorageTest {
         }
     }
 
+    @Test
+    public void testUpdatedSince() throws Exception {
+        H2Storage storage = new H2Storage(dbFile.getAbsolutePath());
+        storage.migrateStorage();
+
+        try (Connection connection = storage.openDb()) {
+            storage.persistPoly(connection, BasicPoly.newPoly("potato1").with("value", "1"));
+            storage.persistPoly(connection, BasicPoly.newPoly("potato2").with("value", "1"));
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("UPDATE data SET create_date = '2000-01-01 00:00:00', update_date = '2000-01-01 00:00:00'");
+            }
+
+            storage.persistPoly(connection, BasicPoly.newPoly("potato2").with("value", "2"));
+
+            EmbeddedPolyQuery changedQuery = new EmbeddedPolyQuery();
+            changedQuery.setUpdatedSince(new Date(946771200000L));
+            List<BasicPoly> changed = storage.listPoly(connection, changedQuery);
+            assertThat(changed.size(), is(1));
+            assertThat(changed.get(0)._id(), is("potato2"));
+            assertThat(changed.get(0).fetch("value"), is("2"));
+            assertThat(storage.fetchPolyCount(connection, changedQuery), is(1L));
+
+            EmbeddedPolyQuery createdQuery = new EmbeddedPolyQuery();
+            createdQuery.setCreatedSince(new Date(946771200000L));
+            assertThat(storage.listPoly(connection, createdQuery).size(), is(0));
+            assertThat(storage.fetchPolyCount(connection, createdQuery), is(0L));
+        }
+    }
+
+    @Test
+    public void testNumericFieldRange() throws Exception {
+        H2Storage storage = new H2Storage(dbFile.getAbsolutePath());
+        storage.migrateStorage();
+
+        try (Connection connection = storage.openDb()) {
+            storage.createFieldIndex(connection, "price");
+            storage.persistPoly(connection, BasicPoly.newPoly("p6").with("price", 6));
+            storage.persistPoly(connection, BasicPoly.newPoly("p50").with("price", 50));
+            storage.persistPoly(connection, BasicPoly.newPoly("p100").with("price", 100.5));
+            storage.persistPoly(connection, BasicPoly.newPoly("p250").with("price", 250));
+            storage.persistPoly(connection, BasicPoly.newPoly("text").with("price", "75"));
+
+            EmbeddedPolyQuery rangeQuery = new EmbeddedPolyQuery();
+            rangeQuery.setPredicates(Arrays.asList(PolyPredicate.between("price", 50, 200)));
+            Set<String> ids = new HashSet<>();
+            storage.listPoly(connection, rangeQuery).forEach(poly -> ids.add(poly._id()));
+            assertThat(ids, is(new HashSet<>(Arrays.asList("p50", "p100"))));
+            assertThat(storage.fetchPolyCount(connection, rangeQuery), is(2L));
+
+            EmbeddedPolyQuery greaterQuery = new EmbeddedPolyQuery();
+            greaterQuery.setPredicates(Arrays.asList(PolyPredicate.gt("price", 7)));
+            assertThat(storage.listPoly(connection, greaterQuery).size(), is(3));
+
+            EmbeddedPolyQuery textQuery = new EmbeddedPolyQuery();
+            textQuery.setPredicates(Arrays.asList(PolyPredicate.eq("price", "75")));
+            assertThat(storage.listPoly(connection, textQuery).get(0)._id(), is("text"));
+        }
+    }
+
+    @Test
+    public void testSlowStatementLog() throws Exception {
+        H2Storage storage = new H2Storage(dbFile.getAbsolutePath());
+        storage.migrateStorage();
+
+        try (Connection connection = storage.openDb()) {
+            for (int i = 0; i < 3; i++) {
+                storage.persistPoly(connection, BasicPoly.newPoly("potato" + i));
+            }
+            storage.enableSlowStatementLog(0, 60_000);
+
+            EmbeddedPolyQuery randomQuery = new EmbeddedPolyQuery();
+            randomQuery.setItemPerPage(10L);
+            randomQuery.setRandomOrder(true);
+            assertThat(storage.listPoly(connection, randomQuery).size(), is(3));
+            try (Stream<BasicPoly> stream = storage.streamPoly(connection, new EmbeddedPolyQuery())) {
+                assertThat(stream.count(), is(3L));
+            }
+            storage.fetchTags(connection);
+
+            assertThat(storage.getSlowStatementLog().getSlowStatements(), is(4L));
+        }
+    }
+
+    @Test
+    public void testPooledOperations() throws Exception {
+        H2Storage storage = new H2Storage(dbFile.getAbsolutePath());
+        storage.migrateStorage();
+        storage.enableConnectionPool(2);
+        try {
+            for (int i = 0; i < 5; i++) {
+                storage.persistPoly(BasicPoly.newPoly("potato" + i).with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag" + i % 2)));
+            }
+            assertThat(storage.fetchPoly("potato1").isPresent(), is(true));
+            assertThat(storage.fetchByIds(Arrays.asList("potato3", "missing", "potato0")).size(), is(2));
+
+            EmbeddedPolyQuery tagQuery = new EmbeddedPolyQuery();
+            tagQuery.setTag("tag0");
+            assertThat(storage.listPoly(tagQuery).size(), is(3));
+            assertThat(storage.fetchPolyCount(tagQuery), is(3L));
+
+            EmbeddedPolyQuery streamQuery = new EmbeddedPolyQuery();
+            streamQuery.setItemPerPage(null);
+            try (Stream<BasicPoly> stream = storage.streamPoly(streamQuery)) {
+                assertThat(stream.count(), is(5L));
+            }
+
+            assertThat(storage.removePoly("potato0"), is(true));
+            assertThat(storage.listPolyPage(tagQuery).list().size(), is(2));
+        } finally {
+            storage.closeDb();
+        }
+    }
+
     @Test
     public void testDBPolyRemoval() throws Exception {
         H2Storage storage = new H2Storage(dbFile.getAbsolutePath());
@@ -187,18 +341,17 @@ public class H2StorageTest {
         basicPoly._id("qwe");
         basicPoly.put("x", "y");
 
-        Connection connection = storage.openDb();
-
-        storage.persistIndexTag(connection, "tag_index_potato", "document_tomato", basicPoly);
-        storage.persistIndexTag(connection, "tag_index_potato", "document_tomato", basicPoly);
-
-        long tag_index_count = storage.fetchTagIndexCount(connection, "tag_index_potato");
-        assertThat(tag_index_count, is(1L));
+        try (Connection connection = storage.openDb()) {
+            storage.persistIndexTag(connection, "tag_index_potato", "document_tomato", basicPoly);
+            storage.persistIndexTag(connection, "tag_index_potato", "document_tomato", basicPoly);
 
-        Optional<BasicPoly> dbPoly = storage.fetchTagIndexPoly(connection, "tag_index_potato", "document_tomato");
-        assertThat(dbPoly.isPresent(), is(true));
-        assertThat(dbPoly.get().fetch("x"), is("y"));
+            long tag_index_count = storage.fetchTagIndexCount(connection, "tag_index_potato");
+            assertThat(tag_index_count, is(1L));
 
+            Optional<BasicPoly> dbPoly = storage.fetchTagIndexPoly(connection, "tag_index_potato", "document_tomato");
+            assertThat(dbPoly.isPresent(), is(true));
+            assertThat(dbPoly.get().fetch("x"), is("y"));
+        }
     }
 
     @Test
@@ -206,36 +359,33 @@ public class H2StorageTest {
         H2Storage storage = new H2Storage(dbFile.getAbsolutePath());
         storage.migrateStorage();
 
-        Connection connection = storage.openDb();
-
-        storage.persistTag(connection, BasicPoly.newPoly("test_tag_1"));
-        storage.persistTag(connection, BasicPoly.newPoly("test_tag_1"));
-
-        storage.persistTag(connection, BasicPoly.newPoly("test_tag_2"));
-
-        long tagCount = storage.fetchTagCount(connection);
-        assertThat(tagCount, is(2L));
-
-        List<BasicPoly> tagList = storage.fetchTags(connection);
+        try (Connection connection = storage.openDb()) {
+            storage.persistTag(connection, BasicPoly.newPoly("test_tag_1"));
+            storage.persistTag(connection, BasicPoly.newPoly("test_tag_1"));
 
-        assertThat(tagList, is(notNullValue()));
-        assertThat(tagList.size(), is(2));
+            storage.persistTag(connection, BasicPoly.newPoly("test_tag_2"));
 
-        Optional<BasicPoly> test_tag_1 = storage.fetchTagPoly(connection, "test_tag_1");
-        assertThat(test_tag_1.isPresent(), is(true));
-        int count = test_tag_1.get().fetch("_count");
-        assertThat(count, is(2));
+            long tagCount = storage.fetchTagCount(connection);
+            assertThat(tagCount, is(2L));
 
-        Optional<BasicPoly> test_tag_2 = storage.fetchTagPoly(connection, "test_tag_2");
-        assertThat(test_tag_2.isPresent(), is(true));
-        int count2 = test_tag_2.get().fetch("_count");
-        assertThat(count2, is(1));
+            List<BasicPoly> tagList = storage.fetchTags(connection);
 
-        Optional<BasicPoly> test_tag_3 = storage.fetchTagPoly(connection, "test_tag_3");
-        assertThat(test_tag_3.isPresent(), is(false));
+            assertThat(tagList, is(notNullValue()));
+            assertThat(tagList.size(), is(2));
 
+            Optional<BasicPoly> test_tag_1 = storage.fetchTagPoly(connection, "test_tag_1");
+            assertThat(test_tag_1.isPresent(), is(true));
+            int count = test_tag_1.get().fetch("_count");
+            assertThat(count, is(2));
 
+            Optional<BasicPoly> test_tag_2 = storage.fetchTagPoly(connection, "test_tag_2");
+            assertThat(test_tag_2.isPresent(), is(true));
+            int count2 = test_tag_2.get().fetch("_count");
+            assertThat(count2, is(1));
 
+            Optional<BasicPoly> test_tag_3 = storage.fetchTagPoly(connection, "test_tag_3");
+            assertThat(test_tag_3.isPresent(), is(false));
+        }
     }
 
     @Test
@@ -19,9 +19,16 @@ import com.unidev.polydata.domain.*;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.collections4.CollectionUtils;
 import org.flywaydb.core.Flyway;
+import org.sqlite.SQLiteConfig;
 
 import java.sql.*;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
 
 import static com.unidev.polydata.EmbeddedPolyConstants.*;
 
@@ -40,22 +47,89 @@ public class SQLiteStorage extends AbstractEmbeddedStorage {
         }
     }
 
+    public static final int BUSY_TIMEOUT = 30_000;
+    public static final int DEFAULT_PERSIST_BATCH_SIZE = 500;
+
+    private static final String INSERT_POLY_SQL = "INSERT INTO " + DATA + " (container, _type, _id, data, random_key) VALUES(?, ?, ?, ?, random());";
+    private static final String UPSERT_POLY_SQL = "INSERT INTO " + DATA + " (container, _type, _id, data, random_key) VALUES(?, ?, ?, ?, random()) " +
+            "ON CONFLICT (container, _type, _id) WHERE _type <> '" + TYPE_POLY_INDEX + "' " +
+            "DO UPDATE SET data = excluded.data, update_date = CURRENT_TIMESTAMP;";
+
+    private static final String UPSERT_POLY_TAG_SQL = "INSERT INTO " + POLY_TAG + " (container, tag, poly_rowid, update_date, create_date, random_key) " +
+            "VALUES(?, ?, ?, CURRENT_TIMESTAMP, (SELECT create_date FROM " + DATA + " WHERE id = ?), random()) " +
+            "ON CONFLICT (container, tag, poly_rowid) DO UPDATE SET update_date = CURRENT_TIMESTAMP;";
+    private static final String DELETE_STALE_POLY_TAGS_SQL = "DELETE FROM " + POLY_TAG + " WHERE poly_rowid = ? AND tag NOT IN (SELECT value FROM json_each(?));";
+    private static final String UPDATE_COUNTER_SQL = "INSERT INTO " + POLY_COUNTER + " (container, kind, name, count) VALUES(?, ?, ?, ?) " +
+            "ON CONFLICT (container, kind, name) DO UPDATE SET count = count + excluded.count;";
+    private static final String ACTUAL_COUNTS_SQL = "SELECT '" + COUNTER_TYPE + "' AS kind, _type AS name, COUNT(*) AS count FROM " + DATA + " WHERE container = ? GROUP BY _type " +
+            "UNION ALL SELECT '" + COUNTER_TAG + "' AS kind, tag AS name, COUNT(*) AS count FROM " + POLY_TAG + " WHERE container = ? GROUP BY tag";
+    /**
+     * Format of CURRENT_TIMESTAMP dates stored in date columns
+     */
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneOffset.UTC);
+    private static final String CREATE_POLY_TEXT_SQL = "CREATE VIRTUAL TABLE IF NOT EXISTS " + POLY_TEXT + " USING fts5(container UNINDEXED, content)";
+
+    protected int persistBatchSize = DEFAULT_PERSIST_BATCH_SIZE;
+
+    /**
+     * Full text fields of containers, loaded on first use and replaced when full text search is enabled or disabled
+     */
+    private final Map<String, List<String>> textFields = new ConcurrentHashMap<>();
+
+    /**
+     * Rankings of most used tags of containers, loaded on first top tags lookup and updated by committed tag count changes
+     */
+    private final Map<String, TagRanking> tagRankings = new ConcurrentHashMap<>();
+
+    protected int tagRankingCapacity = TagRanking.DEFAULT_CAPACITY;
+
+    /**
+     * Prefix lookup structures over used tags of containers, loaded on first suggestion and updated by committed tag count changes
+     */
+    private final Map<String, TagSuggestions> tagSuggestions = new ConcurrentHashMap<>();
+
     public SQLiteStorage(String dbFile) {
         super(dbFile);
     }
 
     /**
-     * Open poly storage connection
+     * Open poly storage connection, database is switched to WAL journal so readers don't block on writer:
+     * pooled reads and open streams run on separate connections also in single connection mode
      */
     public Connection openDb() {
         try {
-            return DriverManager.getConnection("jdbc:sqlite:" + dbFile);
+            SQLiteConfig config = new SQLiteConfig();
+            config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+            config.setBusyTimeout(BUSY_TIMEOUT);
+            return DriverManager.getConnection("jdbc:sqlite:" + dbFile, config.toProperties());
         } catch (SQLException e) {
             log.warn("Failed to open db {}", dbFile, e);
             throw new EmbeddedStorageException(e);
         }
     }
 
+    /**
+     * Open read only connection, writer connection is opened first to switch database to WAL mode
+     */
+    @Override
+    public Connection openReadDb() {
+        fetchConnection();
+        try {
+            SQLiteConfig config = new SQLiteConfig();
+            config.setReadOnly(true);
+            config.setBusyTimeout(BUSY_TIMEOUT);
+            return DriverManager.getConnection("jdbc:sqlite:" + dbFile, config.toProperties());
+        } catch (SQLException e) {
+            log.warn("Failed to open read connection {}", dbFile, e);
+            throw new EmbeddedStorageException(e);
+        }
+    }
+
+    @Override
+    protected String explainPrefix() {
+        return "EXPLAIN QUERY PLAN ";
+    }
+
     /**
      * Migrate storage records
      */
@@ -69,41 +143,92 @@ public class SQLiteStorage extends AbstractEmbeddedStorage {
 
     @Override
     public <P extends Poly> Optional<P> metadata(String container) {
-        return (Optional<P>) fetchRawPoly(fetchConnection(), TYPE_METADATA, container, container);
+        return withReadConnection(connection -> (Optional<P>) fetchRawPoly(connection, TYPE_METADATA, container, container));
     }
 
     @Override
     public <P extends Poly> P persistMetadata(String container, P metadata) {
-        return persistRawPoly(fetchConnection(), TYPE_METADATA, container, metadata._id(), true, metadata);
+        return withWriteConnection(connection -> persistRawPoly(connection, TYPE_METADATA, container, metadata._id(), true, metadata));
     }
 
     @Override
     public <P extends Poly> Optional<P> fetchById(String container, String id) {
-        return (Optional<P>) fetchRawPoly(fetchConnection(), TYPE_DATA, container, id);
+        return withReadConnection(connection -> (Optional<P>) fetchRawPoly(connection, TYPE_DATA, container, id));
+    }
+
+    /**
+     * Fetch polys by ids in chunked IN statements instead of one statement per id
+     *
+     * @return found polys in order of requested ids, missing ids are skipped
+     */
+    public List<BasicPoly> fetchByIds(String container, Collection<String> ids) {
+        return withReadConnection(connection -> {
+            try {
+                Map<String, BasicPoly> polys = fetchRawPolys(connection, TYPE_DATA, container, ids);
+                List<BasicPoly> result = new ArrayList<>();
+                for (String id : new LinkedHashSet<>(ids)) {
+                    BasicPoly poly = polys.get(id);
+                    if (poly != null) {
+                        result.add(poly);
+                    }
+                }
+                return result;
+            } catch (Exception e) {
+                log.warn("Failed to fetch polys {} {}", container, dbFile, e);
+                throw new EmbeddedStorageException(e);
+            }
+        });
     }
 
     @Override
     public <P extends Poly> P persist(String container, P poly) {
-        boolean newPoly = !existRawPoly(fetchConnection(), TYPE_DATA, container, poly._id());
-        P persistedPoly = persistRawPoly(fetchConnection(), TYPE_DATA, container, poly._id(), true, poly);
-        List<String> tags = poly.fetch(TAGS_KEY);
-        if (!CollectionUtils.isEmpty(tags)) {
-            for (String tag : tags) {
-                persistIndex(container, Collections.singletonMap(TAGS_KEY, tag), BasicPoly.newPoly(poly._id()));
-            }
-            if (newPoly) {
-                Optional<BasicPoly> tagsMapOptional = fetchRawPoly(fetchConnection(), TYPE_POLYMAP, container, TAGS_KEY);
-                BasicPoly tagsMap = tagsMapOptional.orElseGet(() -> BasicPoly.newPoly(TAGS_KEY));
-                for (String tag : tags) {
-                    int count = tagsMap.fetch(tag, 0);
-                    count++;
-                    tagsMap.put(tag, count);
-                }
-                persistRawPoly(fetchConnection(), TYPE_POLYMAP, container, TAGS_KEY, true, tagsMap);
+        return withWriteConnection(connection -> {
+            persistPoly(connection, container, poly);
+            return poly;
+        });
+    }
+
+    /**
+     * Persist polys in transactions of persistBatchSize items,
+     * data and index rows are written in JDBC batches and tag counters are updated once per transaction.
+     * If transaction fails, it is rolled back and its polys are persisted one by one.
+     *
+     * @return outcome for each poly, in iteration order
+     */
+    public <P extends Poly> List<PersistResult> persistAll(String container, Collection<P> polys) {
+        return persistAll(container, polys.iterator());
+    }
 
+    /**
+     * Persist polys from iterator, only one transaction of polys is kept in memory
+     *
+     * @return outcome for each poly, in iteration order
+     */
+    public <P extends Poly> List<PersistResult> persistAll(String container, Iterator<P> polys) {
+        List<PersistResult> results = new ArrayList<>();
+        List<P> chunk = new ArrayList<>();
+        while (polys.hasNext()) {
+            chunk.add(polys.next());
+            if (chunk.size() >= persistBatchSize) {
+                results.addAll(persistChunk(container, chunk));
+                chunk.clear();
             }
         }
-        return persistedPoly;
+        if (!chunk.isEmpty()) {
+            results.addAll(persistChunk(container, chunk));
+        }
+        return results;
+    }
+
+    public int getPersistBatchSize() {
+        return persistBatchSize;
+    }
+
+    public void setPersistBatchSize(int persistBatchSize) {
+        if (persistBatchSize <= 0) {
+            throw new EmbeddedStorageException("Persist batch size should be positive: " + persistBatchSize);
+        }
+        this.persistBatchSize = persistBatchSize;
     }
 
     /**
@@ -113,90 +238,858 @@ public class SQLiteStorage extends AbstractEmbeddedStorage {
      * @return
      */
     public BasicPoly fetchTags(String container) {
-        return fetchRawPoly(fetchConnection(), TYPE_POLYMAP, container, TAGS_KEY).orElseGet(BasicPoly::new);
+        return withReadConnection(connection -> {
+            try {
+                PreparedStatement preparedStatement = prepareStatement(connection, "SELECT name, count FROM " + POLY_COUNTER + " WHERE container = ? AND kind = ? AND count > 0");
+                preparedStatement.setString(1, container);
+                preparedStatement.setString(2, COUNTER_TAG);
+                BasicPoly tags = null;
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        if (tags == null) {
+                            tags = BasicPoly.newPoly(TAGS_KEY);
+                        }
+                        long count = resultSet.getLong(2);
+                        // counts are kept as integers like in former tag map poly
+                        tags.put(resultSet.getString(1), count <= Integer.MAX_VALUE ? (Object) (int) count : count);
+                    }
+                }
+                return tags == null ? new BasicPoly() : tags;
+            } catch (SQLException e) {
+                log.warn("Failed to fetch tags {}", container, e);
+                throw new EmbeddedStorageException(e);
+            }
+        });
     }
 
+    /**
+     * Fetch most used tags of container, served from in memory ranking updated on writes.
+     * Ranking is loaded again from tag counters when it can't answer lookup, lookups above ranking capacity are always loaded.
+     *
+     * @return tags with counts, ordered by count from highest
+     */
+    public Map<String, Long> topTags(String container, int k) {
+        if (k <= 0) {
+            throw new EmbeddedStorageException("Top tags count should be positive: " + k);
+        }
+        if (k > tagRankingCapacity) {
+            return withReadConnection(connection -> fetchTopTagCounts(connection, container, k));
+        }
+        TagRanking ranking = tagRankings.get(container);
+        Map<String, Long> top = ranking == null ? null : ranking.top(k);
+        if (top != null) {
+            return top;
+        }
+        // ranking is loaded under write lock, so no committed tag count change is missed or applied twice
+        return withWriteConnection(connection -> {
+            TagRanking loadedRanking = new TagRanking(tagRankingCapacity, fetchTopTagCounts(connection, container, tagRankingCapacity + 1));
+            tagRankings.put(container, loadedRanking);
+            return loadedRanking.top(k);
+        });
+    }
+
+    /**
+     * Suggest tags starting with prefix, ordered by count.
+     * Served from in memory structure of used tags of container, which is loaded from tag counters on first use and updated on writes.
+     *
+     * @return tags with counts, ordered by count from highest
+     */
+    public Map<String, Long> suggestTags(String container, String prefix, int limit) {
+        if (prefix == null) {
+            throw new EmbeddedStorageException("Tag prefix should not be null");
+        }
+        if (limit <= 0) {
+            throw new EmbeddedStorageException("Tag suggestion limit should be positive: " + limit);
+        }
+        TagSuggestions suggestions = tagSuggestions.get(container);
+        if (suggestions == null) {
+            // loaded under write lock, so no committed tag count change is missed or applied twice
+            suggestions = withWriteConnection(connection -> tagSuggestions.computeIfAbsent(container,
+                    key -> new TagSuggestions(fetchTopTagCounts(connection, container, -1))));
+        }
+        return suggestions.suggest(prefix, limit);
+    }
+
+    public int getTagRankingCapacity() {
+        return tagRankingCapacity;
+    }
+
+    /**
+     * Set max number of tags kept in ranking of each container, loaded rankings are dropped
+     */
+    public void setTagRankingCapacity(int tagRankingCapacity) {
+        if (tagRankingCapacity <= 0) {
+            throw new EmbeddedStorageException("Tag ranking capacity should be positive: " + tagRankingCapacity);
+        }
+        synchronized (writeLock) {
+            this.tagRankingCapacity = tagRankingCapacity;
+            tagRankings.clear();
+        }
+    }
+
+    /**
+     * Fetch counts of most used tags ordered by count
+     *
+     * @param limit max number of tags, negative for all used tags
+     */
+    private Map<String, Long> fetchTopTagCounts(Connection connection, String container, int limit) {
+        try {
+            PreparedStatement preparedStatement = prepareStatement(connection, "SELECT name, count FROM " + POLY_COUNTER + " " +
+                    "WHERE container = ? AND kind = ? AND count > 0 ORDER BY count DESC, name LIMIT ?");
+            preparedStatement.setString(1, container);
+            preparedStatement.setString(2, COUNTER_TAG);
+            preparedStatement.setInt(3, limit);
+            Map<String, Long> counts = new LinkedHashMap<>();
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    counts.put(resultSet.getString(1), resultSet.getLong(2));
+                }
+            }
+            return counts;
+        } catch (SQLException e) {
+            log.warn("Failed to fetch top tags {}", container, e);
+            throw new EmbeddedStorageException(e);
+        }
+    }
+
+    /**
+     * Persist index record keyed by keys. Tag postings are maintained from tags of persisted polys,
+     * so index keyed by tags is rejected instead of being written next to postings.
+     */
     @Override
     public <P extends Poly> P persistIndex(String container, Map<String, Object> keys, P poly) {
+        if (keys.containsKey(TAGS_KEY)) {
+            throw new EmbeddedStorageException("Tag index is maintained from poly tags, persist poly with " + TAGS_KEY + " instead");
+        }
         List<String> list = new ArrayList<>(keys.keySet());
         Collections.sort(list);
         StringBuilder indexId = new StringBuilder();
         for (String key : list) {
             indexId.append(key).append(":").append(keys.get(key));
         }
-        return persistRawPoly(fetchConnection(), TYPE_POLY_INDEX, container, indexId.toString(), false, poly);
+        return withWriteConnection(connection -> persistRawPoly(connection, TYPE_POLY_INDEX, container, indexId.toString(), false, poly));
     }
 
     @Override
     public <P extends PolyList> P query(String container, PolyQuery polyQuery) {
         EmbeddedPolyQuery query = (EmbeddedPolyQuery) polyQuery;
-        return (P) queryPoly(container, TYPE_DATA, query);
+        return (P) cachedQuery(container, "query", query, () -> withReadConnection(connection -> {
+            if (query.getTextQuery() != null) {
+                return queryPage(connection, textQuery(connection, container, query), query);
+            }
+            return queryPoly(connection, container, TYPE_DATA, query);
+        }));
     }
 
+    /**
+     * Query polys by tag, tag postings are joined with data records in single statement.
+     * Tag expressions are evaluated in memory on posting bitmaps, only matching page of polys is fetched.
+     * Query with text is evaluated on full text index and filtered by tags.
+     */
     @Override
     public <P extends PolyList> P queryIndex(String container, PolyQuery polyQuery) {
         EmbeddedPolyQuery query = (EmbeddedPolyQuery) polyQuery;
-        BasicPolyList basicPolyList = new BasicPolyList();
-        BasicPolyList polyIndexList = queryPoly(container, TYPE_POLY_INDEX, query, "_id", "tags:" + query.getTag());
+        return (P) cachedQuery(container, "queryIndex", query, () -> withReadConnection(connection -> {
+            if (query.getTextQuery() != null) {
+                return queryPage(connection, textQuery(connection, container, query), query);
+            }
+            return queryPage(connection, indexQuery(connection, container, query), query);
+        }));
+    }
+
+    /**
+     * Stream polys of container matching query, polys are decoded as stream is consumed.
+     * Query with tag or tag expression is evaluated like in queryIndex, without page size all matching polys are streamed.
+     * Stream holds dedicated read connection until it is closed or fully consumed, so it should be used in try-with-resources.
+     */
+    public Stream<BasicPoly> stream(String container, EmbeddedPolyQuery query) {
+        return iterator(container, query).stream();
+    }
 
-        for(BasicPoly poly : polyIndexList.list()) {
-            Optional<Poly> optionalPoly = fetchById(container, poly._id());
-            if (!optionalPoly.isPresent()) {
-                continue;
+    /**
+     * Iterator over polys of container matching query, see stream
+     */
+    public EmbeddedPolyIterator iterator(String container, EmbeddedPolyQuery query) {
+        if (Boolean.TRUE.equals(query.getRandomOrder())) {
+            throw new EmbeddedStorageException("Random order is not supported for streamed queries");
+        }
+        Connection connection = borrowStreamConnection();
+        PreparedStatement preparedStatement = null;
+        try {
+            FilteredQuery filteredQuery;
+            if (query.getTextQuery() != null) {
+                filteredQuery = textQuery(connection, container, query);
+            } else if (query.getTag() != null || query.getTagExpression() != null) {
+                filteredQuery = indexQuery(connection, container, query);
+            } else {
+                filteredQuery = polyQuery(container, TYPE_DATA, query);
+            }
+            appendPagination(filteredQuery, query);
+            preparedStatement = connection.prepareStatement(filteredQuery.sql.toString());
+            preparedStatement.setFetchSize(fetchSize);
+            for (Map.Entry<Integer, Object> entry : filteredQuery.params.entrySet()) {
+                preparedStatement.setObject(entry.getKey(), entry.getValue());
+            }
+            return new EmbeddedPolyIterator(preparedStatement, EmbeddedPolyIterator.DATA_DECODER, () -> releaseStreamConnection(connection));
+        } catch (Exception e) {
+            log.warn("Failed to stream polys {}", dbFile, e);
+            if (preparedStatement != null) {
+                try {
+                    preparedStatement.close();
+                } catch (SQLException closeException) {
+                    log.warn("Failed to close statement {}", dbFile, closeException);
+                }
             }
-            basicPolyList.add(optionalPoly.get());
+            releaseStreamConnection(connection);
+            throw e instanceof EmbeddedStorageException ? (EmbeddedStorageException) e : new EmbeddedStorageException(e);
         }
+    }
 
-        return (P) basicPolyList;
+    /**
+     * Count values of tags or of declared field index among polys matching query, without reading matching polys.
+     * Tag counts are aggregated from tag postings, field counts from values of indexed field expression.
+     * Pagination, ordering and projection of query are ignored.
+     *
+     * @param field TAGS_KEY for tag facet or field with declared index
+     * @param limit max number of returned values
+     * @return values with counts, ordered by count from highest
+     */
+    public Map<String, Long> fetchFacet(String container, EmbeddedPolyQuery query, String field, int limit) {
+        if (limit <= 0) {
+            throw new EmbeddedStorageException("Facet limit should be positive: " + limit);
+        }
+        boolean tagFacet = TAGS_KEY.equals(field);
+        if (!tagFacet && !fetchFieldIndexes(container).contains(PolyProjection.checkField(field))) {
+            throw new EmbeddedStorageException("Facet field " + field + " has no declared index in " + container);
+        }
+        EmbeddedPolyQuery facetQuery = query.toBuilder().fields(null).continuationToken(null).itemPerPage(null).build();
+        return withReadConnection(connection -> {
+            FilteredQuery filteredQuery;
+            if (facetQuery.getTextQuery() != null) {
+                filteredQuery = textQuery(connection, container, facetQuery);
+            } else if (facetQuery.getTag() != null || facetQuery.getTagExpression() != null) {
+                filteredQuery = indexQuery(connection, container, facetQuery);
+            } else {
+                filteredQuery = polyQuery(container, TYPE_DATA, facetQuery);
+            }
+            String valueExpression = tagFacet ? "f.tag" : fieldExpression("m.data", field);
+            StringBuilder sqlQuery = new StringBuilder("SELECT " + valueExpression + " AS value, COUNT(*) AS count FROM (" + filteredQuery.sql + ") m ");
+            Map<Integer, Object> params = filteredQuery.params;
+            if (tagFacet) {
+                sqlQuery.append("JOIN " + POLY_TAG + " f ON f.poly_rowid = m.id AND f.container = ? ");
+                params.put(params.size() + 1, container);
+            } else {
+                sqlQuery.append("WHERE " + valueExpression + " IS NOT NULL ");
+            }
+            sqlQuery.append("GROUP BY value ORDER BY count DESC, value LIMIT ?");
+            params.put(params.size() + 1, limit);
+            try {
+                PreparedStatement preparedStatement = prepareStatement(connection, sqlQuery.toString());
+                for (Map.Entry<Integer, Object> entry : params.entrySet()) {
+                    preparedStatement.setObject(entry.getKey(), entry.getValue());
+                }
+                long start = System.nanoTime();
+                Map<String, Long> facet = new LinkedHashMap<>();
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        facet.put(resultSet.getString("value"), resultSet.getLong("count"));
+                    }
+                }
+                recordStatement(connection, sqlQuery.toString(), params, facet.size(), start);
+                return facet;
+            } catch (SQLException e) {
+                log.warn("Failed to fetch facet {} {}", container, field, e);
+                throw new EmbeddedStorageException(e);
+            }
+        });
     }
 
     public long fetchPolyCount(String container) {
-        return fetchRawPolyCount(fetchConnection(), TYPE_DATA, container);
+        return withReadConnection(connection -> fetchRawPolyCount(connection, TYPE_DATA, container));
+
+    }
+
+    /**
+     * Fetch number of polys with tag
+     */
+    public long fetchTagCount(String container, String tag) {
+        return withReadConnection(connection -> fetchCounter(connection, container, COUNTER_TAG, tag));
+    }
+
+    /**
+     * Compare counters of container with actual number of records and tag postings
+     *
+     * @return true if all counters match
+     */
+    public boolean verifyCounters(String container) {
+        return withReadConnection(connection -> {
+            try {
+                Map<String, Long> actualCounts = new HashMap<>();
+                PreparedStatement actualStatement = prepareStatement(connection, ACTUAL_COUNTS_SQL);
+                actualStatement.setString(1, container);
+                actualStatement.setString(2, container);
+                try (ResultSet resultSet = actualStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        actualCounts.put(resultSet.getString("kind") + ":" + resultSet.getString("name"), resultSet.getLong("count"));
+                    }
+                }
+                Map<String, Long> counters = new HashMap<>();
+                PreparedStatement counterStatement = prepareStatement(connection, "SELECT kind, name, count FROM " + POLY_COUNTER + " WHERE container = ?");
+                counterStatement.setString(1, container);
+                try (ResultSet resultSet = counterStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        counters.put(resultSet.getString("kind") + ":" + resultSet.getString("name"), resultSet.getLong("count"));
+                    }
+                }
+                Set<String> keys = new HashSet<>(actualCounts.keySet());
+                keys.addAll(counters.keySet());
+                boolean consistent = true;
+                for (String key : keys) {
+                    long actual = actualCounts.getOrDefault(key, 0L);
+                    long counter = counters.getOrDefault(key, 0L);
+                    if (actual != counter) {
+                        log.warn("Counter {} of {} in {} is {}, actual count {}", key, container, dbFile, counter, actual);
+                        consistent = false;
+                    }
+                }
+                return consistent;
+            } catch (SQLException e) {
+                log.warn("Failed to verify counters {}", container, e);
+                throw new EmbeddedStorageException(e);
+            }
+        });
+    }
+
+    /**
+     * Recalculate counters of container from records and tag postings
+     */
+    public void rebuildCounters(String container) {
+        withWriteConnection(connection -> inTransaction(connection, () -> {
+            PreparedStatement deleteStatement = prepareStatement(connection, "DELETE FROM " + POLY_COUNTER + " WHERE container = ?");
+            deleteStatement.setString(1, container);
+            deleteStatement.executeUpdate();
+            PreparedStatement insertStatement = prepareStatement(connection, "INSERT INTO " + POLY_COUNTER + " (container, kind, name, count) " +
+                    "SELECT ?, kind, name, count FROM (" + ACTUAL_COUNTS_SQL + ")");
+            insertStatement.setString(1, container);
+            insertStatement.setString(2, container);
+            insertStatement.setString(3, container);
+            invalidateQueries(connection, container);
+            afterCommit(connection, () -> {
+                tagRankings.remove(container);
+                tagSuggestions.remove(container);
+            });
+            return insertStatement.executeUpdate();
+        }));
+    }
+
+    /**
+     * Declare index on top level poly field for container, field predicates of queries are served by index.
+     * Index is expression index over json_extract of field, shared by containers declaring same field.
+     */
+    public void createFieldIndex(String container, String field) {
+        PolyProjection.checkField(field);
+        withWriteConnection(connection -> inTransaction(connection, () -> {
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("CREATE INDEX IF NOT EXISTS " + fieldIndexName(field) + " ON " + DATA + " (container, _type, " + fieldExpression("data", field) + ")");
+            }
+            PreparedStatement preparedStatement = prepareStatement(connection, "INSERT OR IGNORE INTO " + POLY_FIELD_INDEX + " (container, field) VALUES(?, ?)");
+            preparedStatement.setString(1, container);
+            preparedStatement.setString(2, field);
+            return preparedStatement.executeUpdate();
+        }));
+    }
+
+    /**
+     * Remove field index declaration of container, index is dropped when no container declares it
+     */
+    public void dropFieldIndex(String container, String field) {
+        PolyProjection.checkField(field);
+        withWriteConnection(connection -> inTransaction(connection, () -> {
+            PreparedStatement deleteStatement = prepareStatement(connection, "DELETE FROM " + POLY_FIELD_INDEX + " WHERE container = ? AND field = ?");
+            deleteStatement.setString(1, container);
+            deleteStatement.setString(2, field);
+            deleteStatement.executeUpdate();
+            PreparedStatement usageStatement = prepareStatement(connection, "SELECT COUNT(*) FROM " + POLY_FIELD_INDEX + " WHERE field = ?");
+            usageStatement.setString(1, field);
+            long usages;
+            try (ResultSet resultSet = usageStatement.executeQuery()) {
+                usages = resultSet.getLong(1);
+            }
+            if (usages == 0) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.executeUpdate("DROP INDEX IF EXISTS " + fieldIndexName(field));
+                }
+            }
+            return null;
+        }));
+    }
+
+    /**
+     * Fields with declared indexes in container
+     */
+    public List<String> fetchFieldIndexes(String container) {
+        return withReadConnection(connection -> {
+            try {
+                PreparedStatement preparedStatement = prepareStatement(connection, "SELECT field FROM " + POLY_FIELD_INDEX + " WHERE container = ? ORDER BY field");
+                preparedStatement.setString(1, container);
+                List<String> fields = new ArrayList<>();
+                try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                    while (resultSet.next()) {
+                        fields.add(resultSet.getString(1));
+                    }
+                }
+                return fields;
+            } catch (SQLException e) {
+                log.warn("Failed to fetch field indexes {}", container, e);
+                throw new EmbeddedStorageException(e);
+            }
+        });
+    }
+
+    /**
+     * Enable full text search over top level poly fields of container, FTS5 table is created on first use.
+     * Text of listed fields is indexed for all existing polys and kept in sync on persist and remove.
+     */
+    public void enableFullText(String container, List<String> fields) {
+        if (CollectionUtils.isEmpty(fields)) {
+            throw new EmbeddedStorageException("Full text search without fields");
+        }
+        for (String field : fields) {
+            PolyProjection.checkField(field);
+        }
+        List<String> containerFields = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(fields)));
+        withWriteConnection(connection -> {
+            inTransaction(connection, () -> {
+                try (Statement statement = connection.createStatement()) {
+                    statement.executeUpdate(CREATE_POLY_TEXT_SQL);
+                }
+                PreparedStatement deleteStatement = prepareStatement(connection, "DELETE FROM " + POLY_TEXT_FIELD + " WHERE container = ?");
+                deleteStatement.setString(1, container);
+                deleteStatement.executeUpdate();
+                PreparedStatement insertStatement = prepareStatement(connection, "INSERT INTO " + POLY_TEXT_FIELD + " (container, field, position) VALUES(?, ?, ?)");
+                for (int i = 0; i < containerFields.size(); i++) {
+                    insertStatement.setString(1, container);
+                    insertStatement.setString(2, containerFields.get(i));
+                    insertStatement.setInt(3, i);
+                    insertStatement.executeUpdate();
+                }
+                rebuildText(connection, container, containerFields);
+                invalidateQueries(connection, container);
+                return null;
+            });
+            textFields.put(container, containerFields);
+            return null;
+        });
+    }
+
+    /**
+     * Disable full text search of container and remove its indexed text
+     */
+    public void disableFullText(String container) {
+        withWriteConnection(connection -> {
+            if (fetchTextFields(connection, container).isEmpty()) {
+                return null;
+            }
+            inTransaction(connection, () -> {
+                PreparedStatement fieldStatement = prepareStatement(connection, "DELETE FROM " + POLY_TEXT_FIELD + " WHERE container = ?");
+                fieldStatement.setString(1, container);
+                fieldStatement.executeUpdate();
+                PreparedStatement textStatement = prepareStatement(connection, "DELETE FROM " + POLY_TEXT + " WHERE container = ?");
+                textStatement.setString(1, container);
+                invalidateQueries(connection, container);
+                return textStatement.executeUpdate();
+            });
+            textFields.put(container, Collections.emptyList());
+            return null;
+        });
+    }
+
+    /**
+     * Index text of all polys in container again, used for databases populated before full text search was enabled
+     */
+    public void rebuildFullText(String container) {
+        withWriteConnection(connection -> {
+            List<String> fields = fetchTextFields(connection, container);
+            if (fields.isEmpty()) {
+                throw new EmbeddedStorageException("Full text search is not enabled for " + container);
+            }
+            return inTransaction(connection, () -> rebuildText(connection, container, fields));
+        });
+    }
 
+    /**
+     * Full text fields of container, empty if full text search is not enabled
+     */
+    public List<String> fetchFullTextFields(String container) {
+        return withReadConnection(connection -> fetchTextFields(connection, container));
     }
 
-    private BasicPolyList queryPoly(String container, String type, EmbeddedPolyQuery query, String... parameters) {
+    private List<String> fetchTextFields(Connection connection, String container) {
+        List<String> fields = textFields.get(container);
+        if (fields != null) {
+            return fields;
+        }
         try {
-            StringBuilder sqlQuery = new StringBuilder("SELECT * FROM " + DATA + " WHERE container=? AND _type=? ");
-            Integer id = 1;
-            Map<Integer, Object> params = new HashMap<>();
-            params.put(id++, container);
-            params.put(id++, type);
-
-            if (parameters.length !=0 ) {
-                for(int i = 0;i<parameters.length;i++) {
-                    sqlQuery.append(" AND " + parameters[i] + "=?");
-                    i++;
-                    params.put(id++, parameters[i]);
+            PreparedStatement preparedStatement = prepareStatement(connection, "SELECT field FROM " + POLY_TEXT_FIELD + " WHERE container = ? ORDER BY position");
+            preparedStatement.setString(1, container);
+            fields = new ArrayList<>();
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    fields.add(resultSet.getString(1));
                 }
             }
+        } catch (SQLException e) {
+            log.warn("Failed to fetch full text fields {}", container, e);
+            throw new EmbeddedStorageException(e);
+        }
+        fields = Collections.unmodifiableList(fields);
+        textFields.putIfAbsent(container, fields);
+        return fields;
+    }
 
-            if (query.getItemPerPage() != null) {
-                if (Boolean.TRUE.equals(query.getRandomOrder())) {
-                    sqlQuery.append(" ORDER BY RANDOM() ");
-                } else {
-                    sqlQuery.append(" ORDER BY update_date DESC ");
+    private int rebuildText(Connection connection, String container, List<String> fields) throws SQLException {
+        invalidateQueries(connection, container);
+        PreparedStatement deleteStatement = prepareStatement(connection, "DELETE FROM " + POLY_TEXT + " WHERE container = ?");
+        deleteStatement.setString(1, container);
+        deleteStatement.executeUpdate();
+        PreparedStatement insertStatement = prepareStatement(connection, "INSERT INTO " + POLY_TEXT + " (rowid, container, content) " +
+                "SELECT id, container, " + textExpression(fields) + " FROM " + DATA + " WHERE container = ? AND _type = ?");
+        insertStatement.setString(1, container);
+        insertStatement.setString(2, TYPE_DATA);
+        return insertStatement.executeUpdate();
+    }
+
+    /**
+     * Replace indexed text of persisted polys, nothing is done if full text search is not enabled for container
+     */
+    private void updateText(Connection connection, String container, Collection<Long> rowIds) throws Exception {
+        List<String> fields = fetchTextFields(connection, container);
+        if (fields.isEmpty() || rowIds.isEmpty()) {
+            return;
+        }
+        String rowIdsJSON = POLY_OBJECT_MAPPER.writeValueAsString(rowIds);
+        PreparedStatement deleteStatement = prepareStatement(connection, "DELETE FROM " + POLY_TEXT + " WHERE rowid IN (SELECT value FROM json_each(?))");
+        deleteStatement.setString(1, rowIdsJSON);
+        deleteStatement.executeUpdate();
+        PreparedStatement insertStatement = prepareStatement(connection, "INSERT INTO " + POLY_TEXT + " (rowid, container, content) " +
+                "SELECT id, container, " + textExpression(fields) + " FROM " + DATA + " WHERE id IN (SELECT value FROM json_each(?))");
+        insertStatement.setString(1, rowIdsJSON);
+        insertStatement.executeUpdate();
+    }
+
+    /**
+     * Indexed text of poly, values of fields separated by space
+     */
+    private static String textExpression(List<String> fields) {
+        StringBuilder expression = new StringBuilder();
+        for (String field : fields) {
+            if (expression.length() > 0) {
+                expression.append(" || ' ' || ");
+            }
+            expression.append("COALESCE(").append(fieldExpression("data", field)).append(", '')");
+        }
+        return expression.toString();
+    }
+
+    private static String fieldIndexName(String field) {
+        return "\"field_" + field + "_idx\"";
+    }
+
+    /**
+     * Expression of top level field of JSON data column
+     */
+    private static String fieldExpression(String dataColumn, String field) {
+        return "json_extract(" + dataColumn + ", '" + PolyProjection.jsonPath(field) + "')";
+    }
+
+    /**
+     * Bitmap of row ids of polys with tag
+     */
+    private PolyBitmap fetchTagBitmap(Connection connection, String container, String tag) {
+        try {
+            PreparedStatement preparedStatement = prepareStatement(connection, "SELECT poly_rowid FROM " + POLY_TAG + " WHERE container = ? AND tag = ? ORDER BY poly_rowid");
+            preparedStatement.setString(1, container);
+            preparedStatement.setString(2, tag);
+            return evaluateStatementToBitmap(preparedStatement);
+        } catch (SQLException e) {
+            log.warn("Failed to fetch tag postings {} {}", container, tag, e);
+            throw new EmbeddedStorageException(e);
+        }
+    }
+
+    /**
+     * Bitmap of row ids of all polys in container
+     */
+    private PolyBitmap fetchPolyBitmap(Connection connection, String container) {
+        try {
+            PreparedStatement preparedStatement = prepareStatement(connection, "SELECT id FROM " + DATA + " WHERE container = ? AND _type = ? ORDER BY id");
+            preparedStatement.setString(1, container);
+            preparedStatement.setString(2, TYPE_DATA);
+            return evaluateStatementToBitmap(preparedStatement);
+        } catch (SQLException e) {
+            log.warn("Failed to fetch poly ids {}", container, e);
+            throw new EmbeddedStorageException(e);
+        }
+    }
+
+    private PolyBitmap evaluateStatementToBitmap(PreparedStatement preparedStatement) throws SQLException {
+        PolyBitmap bitmap = new PolyBitmap();
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                bitmap.add(resultSet.getLong(1));
+            }
+        }
+        return bitmap;
+    }
+
+    private EmbeddedPolyList queryPoly(Connection connection, String container, String type, EmbeddedPolyQuery query) {
+        return queryPage(connection, polyQuery(container, type, query), query);
+    }
+
+    /**
+     * Filtered query of records of type in container
+     */
+    private FilteredQuery polyQuery(String container, String type, EmbeddedPolyQuery query) {
+        FilteredQuery filteredQuery = new FilteredQuery("data", "FROM " + DATA + " WHERE container=? AND _type=? ", "", "id", "random_key", query);
+        filteredQuery.params.put(1, container);
+        filteredQuery.params.put(2, type);
+        return filteredQuery.appendPredicates(query);
+    }
+
+    /**
+     * Filtered query of polys by tag: tag postings are joined with data records in single statement,
+     * tag expressions are evaluated in memory on posting bitmaps.
+     */
+    private FilteredQuery indexQuery(Connection connection, String container, EmbeddedPolyQuery query) {
+        if (query.getTagExpression() != null) {
+            Map<String, PolyBitmap> postings = new HashMap<>();
+            PolyBitmap matches = query.getTagExpression().evaluate(
+                    tag -> postings.computeIfAbsent(tag, key -> fetchTagBitmap(connection, container, key)),
+                    () -> fetchPolyBitmap(connection, container));
+            if (query.getItemPerPage() != null && !Boolean.TRUE.equals(query.getRandomOrder())) {
+                matches = pageWindowMatches(connection, container, query, matches);
+            }
+            FilteredQuery filteredQuery = new FilteredQuery("data", "FROM " + DATA + " WHERE id IN (SELECT value FROM json_each(?)) ", "", "id", "random_key", query);
+            filteredQuery.params.put(1, matches.toJSON());
+            return filteredQuery.appendPredicates(query);
+        }
+        FilteredQuery filteredQuery = new FilteredQuery("d.data", "FROM " + POLY_TAG + " t JOIN " + DATA + " d ON d.id = t.poly_rowid WHERE t.container=? AND t.tag=? ",
+                "t.", "t.poly_rowid", "t.random_key", query);
+        filteredQuery.params.put(1, container);
+        filteredQuery.params.put(2, query.getTag());
+        return filteredQuery.appendPredicates(query);
+    }
+
+    /**
+     * Matches of tag expression up to the end of requested page, in sort order and keyset window of query,
+     * so only ids needed by page are bound to page statement. Polys of container are walked on sort index
+     * and tested against matches, walk is used only when it is expected to read fewer rows than matches has.
+     */
+    private PolyBitmap pageWindowMatches(Connection connection, String container, EmbeddedPolyQuery query, PolyBitmap matches) {
+        long windowSize = query.getContinuationToken() != null ? query.getItemPerPage() : query.getItemPerPage() * (query.getPage() + 1);
+        long matchCount = matches.cardinality();
+        if (matchCount <= windowSize || windowSize * fetchRawPolyCount(connection, TYPE_DATA, container) >= matchCount * matchCount) {
+            return matches;
+        }
+        // projection of id only, walked polys are not decoded
+        FilteredQuery walkQuery = polyQuery(container, TYPE_DATA, query.toBuilder().fields(Collections.emptyList()).build());
+        appendSortOrder(walkQuery, query);
+        PolyBitmap window = new PolyBitmap();
+        long windowCount = 0;
+        try (PreparedStatement preparedStatement = connection.prepareStatement(walkQuery.sql.toString())) {
+            for (Map.Entry<Integer, Object> entry : walkQuery.params.entrySet()) {
+                preparedStatement.setObject(entry.getKey(), entry.getValue());
+            }
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (windowCount < windowSize && resultSet.next()) {
+                    long id = resultSet.getLong("id");
+                    if (matches.contains(id)) {
+                        window.add(id);
+                        windowCount++;
+                    }
                 }
+            }
+        } catch (SQLException e) {
+            log.warn("Failed to walk polys {}", container, e);
+            throw new EmbeddedStorageException(e);
+        }
+        return window;
+    }
 
-                sqlQuery.append("  LIMIT ? OFFSET ?");
-                params.put(id++, query.getItemPerPage());
-                params.put(id++, query.getItemPerPage() * (query.getPage()));
+    /**
+     * Filtered query of polys matching FTS5 text query, ranked by relevance.
+     * Text matches are filtered by tag or tag expression of query.
+     */
+    private FilteredQuery textQuery(Connection connection, String container, EmbeddedPolyQuery query) {
+        if (fetchTextFields(connection, container).isEmpty()) {
+            throw new EmbeddedStorageException("Full text search is not enabled for " + container);
+        }
+        if (query.getContinuationToken() != null) {
+            throw new EmbeddedStorageException("Continuation token is not supported for text queries");
+        }
+        FilteredQuery filteredQuery = new FilteredQuery("d.data", "FROM " + POLY_TEXT + " x JOIN " + DATA + " d ON d.id = x.rowid WHERE x." + POLY_TEXT + " MATCH ? AND d.container = ? ",
+                "d.", "d.id", "d.random_key", query);
+        filteredQuery.rankColumn = "x.rank";
+        filteredQuery.params.put(1, query.getTextQuery());
+        filteredQuery.params.put(2, container);
+        if (query.getTagExpression() != null) {
+            Map<String, PolyBitmap> postings = new HashMap<>();
+            PolyBitmap matches = query.getTagExpression().evaluate(
+                    tag -> postings.computeIfAbsent(tag, key -> fetchTagBitmap(connection, container, key)),
+                    () -> fetchPolyBitmap(connection, container));
+            filteredQuery.sql.append(" AND d.id IN (SELECT value FROM json_each(?)) ");
+            filteredQuery.params.put(3, matches.toJSON());
+        } else if (query.getTag() != null) {
+            filteredQuery.sql.append(" AND d.id IN (SELECT poly_rowid FROM " + POLY_TAG + " WHERE container = ? AND tag = ?) ");
+            filteredQuery.params.put(3, container);
+            filteredQuery.params.put(4, query.getTag());
+        }
+        return filteredQuery.appendPredicates(query);
+    }
+
+    /**
+     * Query page of polys, ordering and pagination are appended to filtered query
+     */
+    private EmbeddedPolyList queryPage(Connection connection, FilteredQuery filteredQuery, EmbeddedPolyQuery query) {
+        try {
+            if (query.getItemPerPage() != null && Boolean.TRUE.equals(query.getRandomOrder())) {
+                return sampleRandomPoly(connection, filteredQuery.sql.toString(), filteredQuery.randomKeyColumn, filteredQuery.params, query);
             }
-            PreparedStatement preparedStatement = connection.prepareStatement(sqlQuery.toString());
-            for (Map.Entry<Integer, Object> entry : params.entrySet()) {
+            boolean keysetPage = appendPagination(filteredQuery, query);
+            String sql = filteredQuery.sql.toString();
+            PreparedStatement preparedStatement = prepareStatement(connection, sql);
+            for (Map.Entry<Integer, Object> entry : filteredQuery.params.entrySet()) {
                 preparedStatement.setObject(entry.getKey(), entry.getValue());
             }
-            return evaluateStatementToPolyList(preparedStatement);
+            long start = System.nanoTime();
+            EmbeddedPolyList polyList = evaluateStatementToPolyList(preparedStatement, keysetPage ? query.getItemPerPage() : null);
+            recordStatement(connection, sql, filteredQuery.params, polyList.list().size(), start);
+            return polyList;
         } catch (Exception e) {
             log.warn("Failed to fetch polys {}", dbFile, e);
             throw new EmbeddedStorageException(e);
         }
     }
 
+    /**
+     * Append ordering and keyset or offset pagination to filtered query, query without page size is not paginated.
+     * Ranked queries are ordered by rank and paginated only by offset.
+     *
+     * @return true if query is paginated and page can be continued by keyset
+     */
+    private boolean appendPagination(FilteredQuery filteredQuery, EmbeddedPolyQuery query) {
+        StringBuilder sqlQuery = filteredQuery.sql;
+        Map<Integer, Object> params = filteredQuery.params;
+        String idColumn = filteredQuery.idColumn;
+        Integer id = params.size() + 1;
+        if (filteredQuery.rankColumn != null) {
+            sqlQuery.append(" ORDER BY " + filteredQuery.rankColumn + ", " + idColumn + " DESC ");
+            if (query.getItemPerPage() != null) {
+                sqlQuery.append("  LIMIT ? OFFSET ?");
+                params.put(id++, query.getItemPerPage());
+                params.put(id++, query.getItemPerPage() * (query.getPage()));
+            }
+            return false;
+        }
+        if (query.getItemPerPage() == null) {
+            return false;
+        }
+        appendSortOrder(filteredQuery, query);
+        id = params.size() + 1;
+        if (query.getContinuationToken() != null) {
+            sqlQuery.append("  LIMIT ?");
+            params.put(id++, query.getItemPerPage());
+        } else {
+            sqlQuery.append("  LIMIT ? OFFSET ?");
+            params.put(id++, query.getItemPerPage());
+            params.put(id++, query.getItemPerPage() * (query.getPage()));
+        }
+        return true;
+    }
+
+    /**
+     * Append keyset condition of query continuation token and ordering by query sort
+     */
+    private void appendSortOrder(FilteredQuery filteredQuery, EmbeddedPolyQuery query) {
+        StringBuilder sqlQuery = filteredQuery.sql;
+        Map<Integer, Object> params = filteredQuery.params;
+        String sortColumn = filteredQuery.sortColumn;
+        String idColumn = filteredQuery.idColumn;
+        PolySort sort = PolySort.of(query);
+        Integer id = params.size() + 1;
+        if (query.getContinuationToken() != null) {
+            EmbeddedPolyCursor cursor = EmbeddedPolyCursor.decode(query.getContinuationToken());
+            String after = sort.isDescending() ? " < ?" : " > ?";
+            sqlQuery.append(" AND " + sortColumn + (sort.isDescending() ? " <= ?" : " >= ?") + " AND (" + sortColumn + after + " OR " + idColumn + after + ") ");
+            params.put(id++, cursor.getSortDate());
+            params.put(id++, cursor.getSortDate());
+            params.put(id++, cursor.getId());
+        }
+        sqlQuery.append(" ORDER BY " + sortColumn + " " + sort.direction() + ", " + idColumn + " " + sort.direction() + " ");
+    }
+
+    /**
+     * Sample page of random polys through random_key index: records are read in random_key order from random pivot,
+     * wrapping around to lowest keys when pivot is close to the end.
+     * If query has random seed, pivot is derived from seed and page so pages are reproducible.
+     */
+    private EmbeddedPolyList sampleRandomPoly(Connection connection, String baseQuery, String randomKeyColumn, Map<Integer, Object> baseParams, EmbeddedPolyQuery query) throws SQLException {
+        long page = query.getPage() == null ? 0L : query.getPage();
+        long pivot = query.getRandomSeed() != null ? new Random(query.getRandomSeed() * 31 + page).nextLong() : ThreadLocalRandom.current().nextLong();
+
+        EmbeddedPolyList polyList = EmbeddedPolyList.newList();
+        long limit = query.getItemPerPage();
+        for (String range : new String[]{" >= ? ", " < ? "}) {
+            if (limit <= 0) {
+                break;
+            }
+            String sql = baseQuery + " AND " + randomKeyColumn + range + " ORDER BY " + randomKeyColumn + " LIMIT ?";
+            Map<Integer, Object> params = new HashMap<>(baseParams);
+            params.put(params.size() + 1, pivot);
+            params.put(params.size() + 1, limit);
+            PreparedStatement preparedStatement = prepareStatement(connection, sql);
+            for (Map.Entry<Integer, Object> entry : params.entrySet()) {
+                preparedStatement.setObject(entry.getKey(), entry.getValue());
+            }
+            long start = System.nanoTime();
+            List<BasicPoly> sample = evaluateStatementToPolyList(preparedStatement, null).list();
+            recordStatement(connection, sql, params, sample.size(), start);
+            for (BasicPoly poly : sample) {
+                polyList.add(poly);
+            }
+            limit = query.getItemPerPage() - polyList.list().size();
+        }
+        return polyList;
+    }
 
     @Override
     public boolean removePoly(String container, String id) {
-        return removeRawPoly(fetchConnection(), TYPE_DATA, container, id);
+        return withWriteConnection(connection -> removePoly(connection, container, id));
+    }
+
+    /**
+     * Remove data poly with its tag postings and indexed text
+     */
+    boolean removePoly(Connection connection, String container, String id) {
+        return inTransaction(connection, () -> {
+            Long rowId = fetchRowIds(connection, TYPE_DATA, container, Collections.singleton(id)).get(id);
+            if (rowId == null) {
+                return false;
+            }
+            Map<String, Long> tagDeltas = new HashMap<>();
+            addTagDeltas(tagDeltas, fetchPolyTags(connection, Collections.singleton(rowId)).getOrDefault(rowId, Collections.emptySet()), Collections.emptySet());
+            updateCounters(connection, container, COUNTER_TAG, tagDeltas);
+            PreparedStatement preparedStatement = prepareStatement(connection, "DELETE FROM " + POLY_TAG + " WHERE poly_rowid = ?");
+            preparedStatement.setLong(1, rowId);
+            preparedStatement.executeUpdate();
+            if (!fetchTextFields(connection, container).isEmpty()) {
+                PreparedStatement textStatement = prepareStatement(connection, "DELETE FROM " + POLY_TEXT + " WHERE rowid = ?");
+                textStatement.setLong(1, rowId);
+                textStatement.executeUpdate();
+            }
+            // failure propagates so postings and counters changes above are rolled back
+            return deleteRawPoly(connection, TYPE_DATA, container, id);
+        });
     }
 
     /**
@@ -207,14 +1100,15 @@ public class SQLiteStorage extends AbstractEmbeddedStorage {
     public <P extends Poly> Optional<BasicPoly> fetchRawPoly(Connection connection, String type, String container, String id) {
         PreparedStatement preparedStatement;
         try {
-            preparedStatement = connection.prepareStatement("SELECT * FROM " + DATA + " WHERE container=? AND _type = ? AND  _id = ?");
+            preparedStatement = prepareStatement(connection, "SELECT * FROM " + DATA + " WHERE container=? AND _type = ? AND  _id = ?");
             preparedStatement.setString(1, container);
             preparedStatement.setString(2, type);
             preparedStatement.setString(3, id);
-            ResultSet resultSet = preparedStatement.executeQuery();
-            if (resultSet.next()) {
-                String rawJSON = resultSet.getString(EmbeddedPolyConstants.DATA_KEY);
-                return Optional.of(POLY_OBJECT_MAPPER.readValue(rawJSON, BasicPoly.class));
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (resultSet.next()) {
+                    String rawJSON = resultSet.getString(EmbeddedPolyConstants.DATA_KEY);
+                    return Optional.of(POLY_OBJECT_MAPPER.readValue(rawJSON, BasicPoly.class));
+                }
             }
             return Optional.empty();
         } catch (Exception e) {
@@ -228,52 +1122,49 @@ public class SQLiteStorage extends AbstractEmbeddedStorage {
      */
     public boolean removeRawPoly(Connection connection, String type, String container, String id) {
         try {
-            PreparedStatement preparedStatement = connection.prepareStatement("DELETE FROM " + DATA + " WHERE container=? AND _type = ? AND _id = ? ");
-            preparedStatement.setString(1, container);
-            preparedStatement.setString(2, type);
-            preparedStatement.setString(3, id);
-            return preparedStatement.executeUpdate() != 0;
+            return deleteRawPoly(connection, type, container, id);
         } catch (Exception e) {
             log.error("Failed to remove poly {} {} {}", type, id, dbFile, e);
             return false;
         }
     }
 
+    /**
+     * Delete poly record and decrement its type counter, failures are thrown to caller
+     */
+    private boolean deleteRawPoly(Connection connection, String type, String container, String id) {
+        return inTransaction(connection, () -> {
+            PreparedStatement preparedStatement = prepareStatement(connection, "DELETE FROM " + DATA + " WHERE container=? AND _type = ? AND _id = ? ");
+            preparedStatement.setString(1, container);
+            preparedStatement.setString(2, type);
+            preparedStatement.setString(3, id);
+            invalidateQueries(connection, container);
+            if (preparedStatement.executeUpdate() == 0) {
+                return false;
+            }
+            updateCounter(connection, container, COUNTER_TYPE, type, -1);
+            return true;
+        });
+    }
+
     public <P extends Poly> P persistRawPoly(Connection connection, String type, String container, String id, boolean duplicateCheck, P poly) {
+        if (duplicateCheck) {
+            upsertRawPoly(connection, type, container, id, poly);
+            return poly;
+        }
         try {
             String rawJSON = POLY_OBJECT_MAPPER.writeValueAsString(poly);
-
-            ResultSet dataResultSet = null;
-
-            boolean insert = true;
-
-            if (duplicateCheck) {
-                PreparedStatement dataStatement = connection.prepareStatement("SELECT * FROM " + DATA + " WHERE container=? AND _type = ? AND _id = ?;");
-                dataStatement.setString(1, container);
-                dataStatement.setString(2, type);
-                dataStatement.setString(3, id);
-                dataResultSet = dataStatement.executeQuery();
-                if (dataResultSet.next()) { // insert
-                    insert = false;
-                }
-            }
-            if (insert) { // insert
-                PreparedStatement preparedStatement = connection.prepareStatement("INSERT OR REPLACE INTO " + DATA + " (container, _type, _id, data) VALUES(?, ?, ?, ?);");
-                preparedStatement.setString(1, container);
-                preparedStatement.setString(2, type);
-                preparedStatement.setString(3, id);
-                preparedStatement.setObject(4, rawJSON);
-                preparedStatement.executeUpdate();
-            } else { // update
-                PreparedStatement preparedStatement = connection.prepareStatement("INSERT OR REPLACE INTO " + DATA + "(id, container, _type, _id, data, update_date) VALUES(?, ?, ?, ?, ?, ?);");
-                preparedStatement.setObject(1, dataResultSet.getObject("id"));
-                preparedStatement.setString(2, container);
-                preparedStatement.setString(3, type);
-                preparedStatement.setString(4, id);
-                preparedStatement.setObject(5, rawJSON);
-                preparedStatement.setObject(6, new java.util.Date());
+            PreparedStatement preparedStatement = prepareStatement(connection, INSERT_POLY_SQL);
+            preparedStatement.setString(1, container);
+            preparedStatement.setString(2, type);
+            preparedStatement.setString(3, id);
+            preparedStatement.setObject(4, rawJSON);
+            inTransaction(connection, () -> {
+                invalidateQueries(connection, container);
                 preparedStatement.executeUpdate();
-            }
+                updateCounter(connection, container, COUNTER_TYPE, type, 1);
+                return null;
+            });
         } catch (Exception e) {
             log.error("Failed to persist poly {}", poly, e);
             throw new EmbeddedStorageException(e);
@@ -281,41 +1172,392 @@ public class SQLiteStorage extends AbstractEmbeddedStorage {
         return poly;
     }
 
+    /**
+     * Insert poly or update data of existing one in single statement, create_date is kept on update.
+     * Insert is detected by change of last_insert_rowid(), which is not modified when upsert results in update,
+     * type counter is incremented only on insert.
+     *
+     * @return true if new record was inserted
+     */
+    public <P extends Poly> boolean upsertRawPoly(Connection connection, String type, String container, String id, P poly) {
+        try {
+            String rawJSON = POLY_OBJECT_MAPPER.writeValueAsString(poly);
+            PreparedStatement preparedStatement = prepareStatement(connection, UPSERT_POLY_SQL);
+            preparedStatement.setString(1, container);
+            preparedStatement.setString(2, type);
+            preparedStatement.setString(3, id);
+            preparedStatement.setObject(4, rawJSON);
+            return inTransaction(connection, () -> {
+                invalidateQueries(connection, container);
+                // last_insert_rowid() can't tell insert from update: rowid of rolled back insert is reused
+                boolean exists = !fetchRowIds(connection, type, container, Collections.singleton(id)).isEmpty();
+                preparedStatement.executeUpdate();
+                if (exists) {
+                    return false;
+                }
+                updateCounter(connection, container, COUNTER_TYPE, type, 1);
+                return true;
+            });
+        } catch (Exception e) {
+            log.error("Failed to persist poly {}", poly, e);
+            throw new EmbeddedStorageException(e);
+        }
+    }
+
     public boolean existRawPoly(Connection connection, String type, String container, String id) {
         try {
-            PreparedStatement dataStatement = connection.prepareStatement("SELECT * FROM " + DATA + " WHERE container=? AND _type = ? AND _id = ?;");
+            PreparedStatement dataStatement = prepareStatement(connection, "SELECT * FROM " + DATA + " WHERE container=? AND _type = ? AND _id = ?;");
             dataStatement.setString(1, container);
             dataStatement.setString(2, type);
             dataStatement.setString(3, id);
-            ResultSet dataResultSet = dataStatement.executeQuery();
-            return dataResultSet.next();
+            try (ResultSet dataResultSet = dataStatement.executeQuery()) {
+                return dataResultSet.next();
+            }
         } catch (Exception e) {
             log.error("Failed to query poly {}", id, e);
             throw new EmbeddedStorageException(e);
         }
     }
 
+    /**
+     * Number of records of type in container, served from counters
+     */
     public long fetchRawPolyCount(Connection connection, String type, String container) {
-        PreparedStatement preparedStatement;
+        return fetchCounter(connection, container, COUNTER_TYPE, type);
+    }
+
+    /**
+     * Persist data poly with tag postings, tag counters and indexed text
+     *
+     * @return true if poly was inserted
+     */
+    <P extends Poly> boolean persistPoly(Connection connection, String container, P poly) {
+        return inTransaction(connection, () -> {
+            boolean newPoly = upsertRawPoly(connection, TYPE_DATA, container, poly._id(), poly);
+            long rowId = newPoly ? fetchLastInsertRowId(connection) : fetchRowIds(connection, TYPE_DATA, container, Collections.singleton(poly._id())).get(poly._id());
+            Set<String> tags = polyTags(poly);
+            Set<String> existingTags = Collections.emptySet();
+            if (!newPoly) {
+                existingTags = fetchPolyTags(connection, Collections.singleton(rowId)).getOrDefault(rowId, Collections.emptySet());
+                PreparedStatement staleTagsStatement = prepareStatement(connection, DELETE_STALE_POLY_TAGS_SQL);
+                staleTagsStatement.setLong(1, rowId);
+                staleTagsStatement.setString(2, POLY_OBJECT_MAPPER.writeValueAsString(tags));
+                staleTagsStatement.executeUpdate();
+            }
+            if (!tags.isEmpty()) {
+                PreparedStatement tagStatement = prepareStatement(connection, UPSERT_POLY_TAG_SQL);
+                for (String tag : tags) {
+                    tagStatement.setString(1, container);
+                    tagStatement.setString(2, tag);
+                    tagStatement.setLong(3, rowId);
+                    tagStatement.setLong(4, rowId);
+                    tagStatement.executeUpdate();
+                }
+            }
+            Map<String, Long> tagDeltas = new HashMap<>();
+            addTagDeltas(tagDeltas, existingTags, tags);
+            updateCounters(connection, container, COUNTER_TAG, tagDeltas);
+            updateText(connection, container, Collections.singleton(rowId));
+            return newPoly;
+        });
+    }
+
+    private <P extends Poly> List<PersistResult> persistChunk(String container, List<P> chunk) {
+        // polys without id are rejected before both batch and one by one paths
+        PersistResult[] results = new PersistResult[chunk.size()];
+        List<P> validPolys = new ArrayList<>();
+        for (int i = 0; i < chunk.size(); i++) {
+            if (chunk.get(i)._id() == null) {
+                results[i] = PersistResult.failed(null, new EmbeddedStorageException("Poly without id"));
+            } else {
+                validPolys.add(chunk.get(i));
+            }
+        }
+        if (validPolys.isEmpty()) {
+            return Arrays.asList(results);
+        }
+        List<PersistResult> validResults = withWriteConnection(connection -> {
+            try {
+                return inTransaction(connection, () -> batchPersist(connection, container, validPolys));
+            } catch (Exception e) {
+                log.warn("Failed to persist batch of {} polys in {}, persisting one by one", validPolys.size(), dbFile, e);
+            }
+            List<PersistResult> polyResults = new ArrayList<>();
+            for (P poly : validPolys) {
+                try {
+                    boolean inserted = persistPoly(connection, container, poly);
+                    polyResults.add(inserted ? PersistResult.inserted(poly._id()) : PersistResult.updated(poly._id()));
+                } catch (Exception e) {
+                    polyResults.add(PersistResult.failed(poly._id(), e));
+                }
+            }
+            return polyResults;
+        });
+        Iterator<PersistResult> validIterator = validResults.iterator();
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+                results[i] = validIterator.next();
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    private <P extends Poly> List<PersistResult> batchPersist(Connection connection, String container, List<P> chunk) throws Exception {
+        invalidateQueries(connection, container);
+        PersistResult[] results = new PersistResult[chunk.size()];
+        Set<String> ids = new HashSet<>();
+        for (P poly : chunk) {
+            ids.add(poly._id());
+        }
+        Set<String> existingIds = fetchRowIds(connection, TYPE_DATA, container, ids).keySet();
+        Set<String> persistedIds = new HashSet<>(existingIds);
+        // tags of last occurrence of each poly in chunk
+        Map<String, Set<String>> polyTags = new LinkedHashMap<>();
+
+        PreparedStatement dataStatement = prepareStatement(connection, UPSERT_POLY_SQL);
+        try {
+            for (int i = 0; i < chunk.size(); i++) {
+                P poly = chunk.get(i);
+                String id = poly._id();
+                String rawJSON;
+                try {
+                    rawJSON = POLY_OBJECT_MAPPER.writeValueAsString(poly);
+                } catch (Exception e) {
+                    results[i] = PersistResult.failed(id, e);
+                    continue;
+                }
+                dataStatement.setString(1, container);
+                dataStatement.setString(2, TYPE_DATA);
+                dataStatement.setString(3, id);
+                dataStatement.setObject(4, rawJSON);
+                dataStatement.addBatch();
+
+                boolean newPoly = persistedIds.add(id);
+                results[i] = newPoly ? PersistResult.inserted(id) : PersistResult.updated(id);
+                polyTags.put(id, polyTags(poly));
+            }
+            dataStatement.executeBatch();
+        } finally {
+            dataStatement.clearBatch();
+        }
+
+        Map<String, Long> rowIds = fetchRowIds(connection, TYPE_DATA, container, polyTags.keySet());
+        List<Long> updatedRowIds = new ArrayList<>();
+        for (String id : existingIds) {
+            if (polyTags.containsKey(id)) {
+                updatedRowIds.add(rowIds.get(id));
+            }
+        }
+        Map<Long, Set<String>> existingTags = fetchPolyTags(connection, updatedRowIds);
+        Map<String, Long> tagDeltas = new HashMap<>();
+        PreparedStatement staleTagsStatement = prepareStatement(connection, DELETE_STALE_POLY_TAGS_SQL);
+        PreparedStatement tagStatement = prepareStatement(connection, UPSERT_POLY_TAG_SQL);
+        try {
+            for (Map.Entry<String, Set<String>> entry : polyTags.entrySet()) {
+                long rowId = rowIds.get(entry.getKey());
+                boolean newPoly = !existingIds.contains(entry.getKey());
+                addTagDeltas(tagDeltas, existingTags.getOrDefault(rowId, Collections.emptySet()), entry.getValue());
+                if (!newPoly) {
+                    staleTagsStatement.setLong(1, rowId);
+                    staleTagsStatement.setString(2, POLY_OBJECT_MAPPER.writeValueAsString(entry.getValue()));
+                    staleTagsStatement.addBatch();
+                }
+                for (String tag : entry.getValue()) {
+                    tagStatement.setString(1, container);
+                    tagStatement.setString(2, tag);
+                    tagStatement.setLong(3, rowId);
+                    tagStatement.setLong(4, rowId);
+                    tagStatement.addBatch();
+                }
+            }
+            staleTagsStatement.executeBatch();
+            tagStatement.executeBatch();
+        } finally {
+            staleTagsStatement.clearBatch();
+            tagStatement.clearBatch();
+        }
+        updateCounters(connection, container, COUNTER_TAG, tagDeltas);
+        updateCounter(connection, container, COUNTER_TYPE, TYPE_DATA, persistedIds.size() - existingIds.size());
+        updateText(connection, container, rowIds.values());
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Fetch row ids of persisted polys, see queryByIds
+     *
+     * @return map of poly id to row id, missing polys are not included
+     */
+    private Map<String, Long> fetchRowIds(Connection connection, String type, String container, Collection<String> ids) throws Exception {
+        Map<String, Long> rowIds = new HashMap<>();
+        queryByIds(connection, "SELECT _id, id", type, container, ids, resultSet -> rowIds.put(resultSet.getString(1), resultSet.getLong(2)));
+        return rowIds;
+    }
+
+    /**
+     * Fetch records by ids, see queryByIds
+     *
+     * @return map of id to record, missing records are not included
+     */
+    private Map<String, BasicPoly> fetchRawPolys(Connection connection, String type, String container, Collection<String> ids) throws Exception {
+        Map<String, BasicPoly> polys = new HashMap<>();
+        queryByIds(connection, "SELECT _id, data", type, container, ids,
+                resultSet -> polys.put(resultSet.getString(1), POLY_OBJECT_MAPPER.readValue(resultSet.getString(2), BasicPoly.class)));
+        return polys;
+    }
+
+    /**
+     * Select records by distinct ids in one statement: ids are bound as single JSON array parameter,
+     * so statement text does not depend on number of ids and is reused from statement cache
+     */
+    private void queryByIds(Connection connection, String select, String type, String container, Collection<String> ids, RowReader rowReader) throws Exception {
+        if (ids.isEmpty()) {
+            return;
+        }
+        String sqlQuery = select + " FROM " + DATA + " WHERE container=? AND _type=? AND _id IN (SELECT value FROM json_each(?))";
+        Map<Integer, Object> params = new HashMap<>();
+        params.put(1, container);
+        params.put(2, type);
+        params.put(3, POLY_OBJECT_MAPPER.writeValueAsString(new LinkedHashSet<>(ids)));
+        PreparedStatement preparedStatement = prepareStatement(connection, sqlQuery);
+        for (Map.Entry<Integer, Object> entry : params.entrySet()) {
+            preparedStatement.setObject(entry.getKey(), entry.getValue());
+        }
+        long start = System.nanoTime();
+        long rows = 0;
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                rowReader.read(resultSet);
+                rows++;
+            }
+        }
+        recordStatement(connection, sqlQuery, params, rows, start);
+    }
+
+    /**
+     * Fetch current tags of polys by row ids
+     */
+    private Map<Long, Set<String>> fetchPolyTags(Connection connection, Collection<Long> rowIds) throws Exception {
+        Map<Long, Set<String>> polyTags = new HashMap<>();
+        if (rowIds.isEmpty()) {
+            return polyTags;
+        }
+        PreparedStatement preparedStatement = prepareStatement(connection, "SELECT poly_rowid, tag FROM " + POLY_TAG + " WHERE poly_rowid IN (SELECT value FROM json_each(?))");
+        preparedStatement.setString(1, POLY_OBJECT_MAPPER.writeValueAsString(rowIds));
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                polyTags.computeIfAbsent(resultSet.getLong(1), key -> new HashSet<>()).add(resultSet.getString(2));
+            }
+        }
+        return polyTags;
+    }
+
+    private Set<String> polyTags(Poly poly) {
+        List<String> tags = poly.fetch(TAGS_KEY);
+        return CollectionUtils.isEmpty(tags) ? Collections.emptySet() : new LinkedHashSet<>(tags);
+    }
+
+    /**
+     * Add tag counter changes caused by replacing poly tags
+     */
+    private void addTagDeltas(Map<String, Long> tagDeltas, Set<String> oldTags, Set<String> newTags) {
+        for (String tag : newTags) {
+            if (!oldTags.contains(tag)) {
+                tagDeltas.merge(tag, 1L, Long::sum);
+            }
+        }
+        for (String tag : oldTags) {
+            if (!newTags.contains(tag)) {
+                tagDeltas.merge(tag, -1L, Long::sum);
+            }
+        }
+    }
+
+    private long fetchCounter(Connection connection, String container, String kind, String name) {
         try {
-            preparedStatement = connection.prepareStatement("SELECT COUNT(*) AS count FROM " + DATA + " WHERE container = ? AND _type = ?");
+            PreparedStatement preparedStatement = prepareStatement(connection, "SELECT count FROM " + POLY_COUNTER + " WHERE container = ? AND kind = ? AND name = ?");
             preparedStatement.setString(1, container);
-            preparedStatement.setString(2, type);
-            return preparedStatement.executeQuery().getLong("count");
+            preparedStatement.setString(2, kind);
+            preparedStatement.setString(3, name);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                return resultSet.next() ? resultSet.getLong(1) : 0L;
+            }
         } catch (SQLException e) {
-            log.warn("Failed to fetch poly count from {}", type, e);
+            log.warn("Failed to fetch counter {} {} {}", container, kind, name, e);
             throw new EmbeddedStorageException(e);
         }
     }
 
-    private BasicPolyList evaluateStatementToPolyList(PreparedStatement preparedStatement) {
-        BasicPolyList polyList = BasicPolyList.newList();
+    private void updateCounter(Connection connection, String container, String kind, String name, long delta) throws SQLException {
+        updateCounters(connection, container, kind, Collections.singletonMap(name, delta));
+    }
+
+    /**
+     * Add deltas to counters, missing counters are created. Tag count changes are applied to tag ranking and suggestions after commit
+     */
+    private void updateCounters(Connection connection, String container, String kind, Map<String, Long> deltas) throws SQLException {
+        PreparedStatement preparedStatement = prepareStatement(connection, UPDATE_COUNTER_SQL);
         try {
-            ResultSet resultSet = preparedStatement.executeQuery();
-            while (resultSet.next()) {
-                String rawJSON = resultSet.getString(EmbeddedPolyConstants.DATA_KEY);
-                BasicPoly polyRecord = POLY_OBJECT_MAPPER.readValue(rawJSON, BasicPoly.class);
-                polyList.add(polyRecord);
+            boolean changed = false;
+            for (Map.Entry<String, Long> delta : deltas.entrySet()) {
+                if (delta.getValue() == 0) {
+                    continue;
+                }
+                preparedStatement.setString(1, container);
+                preparedStatement.setString(2, kind);
+                preparedStatement.setString(3, delta.getKey());
+                preparedStatement.setLong(4, delta.getValue());
+                preparedStatement.addBatch();
+                changed = true;
+            }
+            if (changed) {
+                preparedStatement.executeBatch();
+            }
+        } finally {
+            preparedStatement.clearBatch();
+        }
+        if (COUNTER_TAG.equals(kind)) {
+            Map<String, Long> tagDeltas = new HashMap<>(deltas);
+            afterCommit(connection, () -> {
+                TagRanking ranking = tagRankings.get(container);
+                if (ranking != null) {
+                    tagDeltas.forEach(ranking::update);
+                }
+                TagSuggestions suggestions = tagSuggestions.get(container);
+                if (suggestions != null) {
+                    tagDeltas.forEach(suggestions::update);
+                }
+            });
+        }
+    }
+
+    private long fetchLastInsertRowId(Connection connection) throws SQLException {
+        PreparedStatement preparedStatement = prepareStatement(connection, "SELECT last_insert_rowid()");
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+            return resultSet.getLong(1);
+        }
+    }
+
+    /**
+     * Read polys from statement, if page is full continuation token is built from last record
+     *
+     * @param pageSize size of keyset page, null if result is not paged by keyset
+     */
+    private EmbeddedPolyList evaluateStatementToPolyList(PreparedStatement preparedStatement, Long pageSize) {
+        EmbeddedPolyList polyList = EmbeddedPolyList.newList();
+        try {
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                EmbeddedPolyCursor cursor = null;
+                while (resultSet.next()) {
+                    String rawJSON = resultSet.getString(EmbeddedPolyConstants.DATA_KEY);
+                    BasicPoly polyRecord = POLY_OBJECT_MAPPER.readValue(rawJSON, BasicPoly.class);
+                    polyList.add(polyRecord);
+                    if (pageSize != null) {
+                        cursor = new EmbeddedPolyCursor(resultSet.getString("sort_date"), resultSet.getLong("id"));
+                    }
+                }
+                if (cursor != null && polyList.list().size() == pageSize) {
+                    polyList.setContinuationToken(cursor.encode());
+                }
             }
             return polyList;
         } catch (Exception e) {
@@ -324,4 +1566,82 @@ public class SQLiteStorage extends AbstractEmbeddedStorage {
         }
     }
 
+    @FunctionalInterface
+    private interface RowReader {
+        void read(ResultSet resultSet) throws Exception;
+    }
+
+    /**
+     * Filtered select of polys data, sort date and id with columns used for ordering and sampling.
+     * If query has projection, data is built only from projected fields with json_extract.
+     */
+    private static class FilteredQuery {
+        private final StringBuilder sql;
+        private final Map<Integer, Object> params = new HashMap<>();
+        /**
+         * Date column of query sort
+         */
+        private final String sortColumn;
+        private final String dateColumnPrefix;
+        private final String idColumn;
+        private final String randomKeyColumn;
+        private final String dataColumn;
+        /**
+         * Relevance column of ranked queries, null if results are ordered by update date
+         */
+        private String rankColumn;
+
+        /**
+         * @param dateColumnPrefix prefix of date columns of table which is ordered, like table alias
+         */
+        FilteredQuery(String dataColumn, String from, String dateColumnPrefix, String idColumn, String randomKeyColumn, EmbeddedPolyQuery query) {
+            StringBuilder dataExpression = new StringBuilder(dataColumn);
+            if (query.getFields() != null) {
+                dataExpression = new StringBuilder("json_object(");
+                for (String field : new PolyProjection(query.getFields()).getFields()) {
+                    if (dataExpression.length() > "json_object(".length()) {
+                        dataExpression.append(", ");
+                    }
+                    dataExpression.append("'").append(field).append("', ").append(fieldExpression(dataColumn, field));
+                }
+                dataExpression.append(")");
+            }
+            this.sortColumn = dateColumnPrefix + PolySort.of(query).getColumn();
+            this.sql = new StringBuilder("SELECT " + dataExpression + " AS data, " + sortColumn + " AS sort_date, " + idColumn + " AS id " + from);
+            this.dataColumn = dataColumn;
+            this.dateColumnPrefix = dateColumnPrefix;
+            this.idColumn = idColumn;
+            this.randomKeyColumn = randomKeyColumn;
+        }
+
+        /**
+         * Append date ranges and field predicates of query,
+         * date ranges are seeks on date indexes and field conditions use same expression as field indexes
+         */
+        FilteredQuery appendPredicates(EmbeddedPolyQuery query) {
+            appendDateCondition("create_date >= ?", query.getCreatedSince());
+            appendDateCondition("create_date < ?", query.getCreatedUntil());
+            appendDateCondition("update_date >= ?", query.getUpdatedSince());
+            appendDateCondition("update_date < ?", query.getUpdatedUntil());
+            if (query.getPredicates() == null) {
+                return this;
+            }
+            for (PolyPredicate predicate : query.getPredicates()) {
+                sql.append(" AND ").append(predicate.toSql(fieldExpression(dataColumn, predicate.getField()))).append(" ");
+                for (Object value : predicate.getValues()) {
+                    params.put(params.size() + 1, value);
+                }
+            }
+            return this;
+        }
+
+        private void appendDateCondition(String condition, Date date) {
+            if (date == null) {
+                return;
+            }
+            sql.append(" AND ").append(dateColumnPrefix).append(condition).append(" ");
+            params.put(params.size() + 1, DATE_FORMAT.format(date.toInstant()));
+        }
+    }
+
 }
@@ -0,0 +1,212 @@
+/**
+ * Copyright (c) 2017 Denis O <denis.o@linux.com>
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.unidev.polydata;
+
+import com.unidev.polydata.domain.Poly;
+import lombok.extern.slf4j.Slf4j;
+
+import java.sql.Connection;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Group commit write pipeline for SQLite storage,
+ * submitted writes are executed by single writer thread in one transaction per batch.
+ * Batch is closed when it reaches max size or max delay since first operation in batch.
+ */
+@Slf4j
+public class SQLiteWriteQueue implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 256;
+    public static final long DEFAULT_MAX_DELAY = 5L;
+
+    private static final long POLL_TIMEOUT = 100L;
+
+    private final SQLiteStorage storage;
+    private final int maxBatchSize;
+    private final long maxDelay;
+
+    private final BlockingQueue<WriteOperation<?>> queue = new LinkedBlockingQueue<>();
+    private final Thread writerThread;
+
+    private volatile boolean running = true;
+
+    public SQLiteWriteQueue(SQLiteStorage storage) {
+        this(storage, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * @param maxBatchSize max number of operations committed in one transaction
+     * @param maxDelay     max time in milliseconds to wait for more operations after first one
+     */
+    public SQLiteWriteQueue(SQLiteStorage storage, int maxBatchSize, long maxDelay) {
+        if (maxBatchSize <= 0) {
+            throw new EmbeddedStorageException("Write batch size should be positive: " + maxBatchSize);
+        }
+        this.storage = storage;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelay = maxDelay;
+        writerThread = new Thread(this::run, "sqlite-write-queue-" + storage.getDbFile());
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Submit poly persisting, future is completed after transaction commit
+     */
+    public <P extends Poly> CompletableFuture<P> submitPersist(String container, P poly) {
+        return submit(connection -> {
+            storage.persistPoly(connection, container, poly);
+            return poly;
+        });
+    }
+
+    /**
+     * Submit poly removal, future is completed after transaction commit
+     */
+    public CompletableFuture<Boolean> submitRemove(String container, String id) {
+        return submit(connection -> storage.removePoly(connection, container, id));
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Stop accepting operations, wait until queued operations are written
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EmbeddedStorageException(e);
+        }
+        failQueued();
+    }
+
+    private <T> CompletableFuture<T> submit(Function<Connection, T> action) {
+        WriteOperation<T> operation = new WriteOperation<>(action);
+        if (!running) {
+            operation.future.completeExceptionally(new EmbeddedStorageException("Write queue is closed"));
+            return operation.future;
+        }
+        queue.add(operation);
+        // queue closed concurrently: operation is either taken by writer thread or close, or failed here
+        if (!running && queue.remove(operation)) {
+            operation.future.completeExceptionally(new EmbeddedStorageException("Write queue is closed"));
+        }
+        return operation.future;
+    }
+
+    private void run() {
+        while (running || !queue.isEmpty()) {
+            try {
+                WriteOperation<?> first = queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                List<WriteOperation<?>> batch = new ArrayList<>();
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelay);
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    WriteOperation<?> operation = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (operation == null) {
+                        break;
+                    }
+                    batch.add(operation);
+                }
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                log.warn("Write queue interrupted {}", storage.getDbFile());
+                running = false;
+            } catch (Exception e) {
+                log.error("Write queue failure {}", storage.getDbFile(), e);
+            }
+        }
+        failQueued();
+    }
+
+    private void failQueued() {
+        WriteOperation<?> operation;
+        while ((operation = queue.poll()) != null) {
+            operation.future.completeExceptionally(new EmbeddedStorageException("Write queue is closed"));
+        }
+    }
+
+    /**
+     * Execute operations in one transaction, failed operation is rolled back to its savepoint
+     * without affecting other operations in batch
+     */
+    private void writeBatch(List<WriteOperation<?>> batch) {
+        try {
+            storage.withWriteConnection(connection -> storage.inTransaction(connection, () -> {
+                for (WriteOperation<?> operation : batch) {
+                    Savepoint savepoint = connection.setSavepoint();
+                    int afterCommitMark = storage.fetchAfterCommitMark();
+                    try {
+                        operation.execute(connection);
+                        connection.releaseSavepoint(savepoint);
+                    } catch (Exception e) {
+                        connection.rollback(savepoint);
+                        storage.discardAfterCommit(afterCommitMark);
+                        operation.error = e;
+                    }
+                }
+                return null;
+            }));
+        } catch (Exception e) {
+            log.warn("Failed to commit write batch of {} operations {}", batch.size(), storage.getDbFile(), e);
+            batch.forEach(operation -> operation.future.completeExceptionally(e));
+            return;
+        }
+        batch.forEach(WriteOperation::complete);
+    }
+
+    private static class WriteOperation<T> {
+        private final Function<Connection, T> action;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private T result;
+        private Exception error;
+
+        WriteOperation(Function<Connection, T> action) {
+            this.action = action;
+        }
+
+        void execute(Connection connection) {
+            result = action.apply(connection);
+        }
+
+        void complete() {
+            if (error != null) {
+                future.completeExceptionally(error);
+            } else {
+                future.complete(result);
+            }
+        }
+    }
+
+}
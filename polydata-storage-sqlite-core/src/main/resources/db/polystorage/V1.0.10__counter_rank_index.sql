@@ -0,0 +1 @@
+CREATE INDEX poly_counter_rank_idx ON poly_counter (container, kind, count DESC, name);
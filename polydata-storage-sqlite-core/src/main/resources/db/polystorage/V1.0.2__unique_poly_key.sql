@@ -0,0 +1,7 @@
+DELETE FROM data WHERE _type <> 'poly_index' AND id NOT IN (
+  SELECT MAX(id) FROM data WHERE _type <> 'poly_index' GROUP BY container, _type, _id
+);
+
+UPDATE data SET update_date = datetime(update_date / 1000, 'unixepoch') WHERE typeof(update_date) = 'integer';
+
+CREATE UNIQUE INDEX poly_key_idx ON data (container, _type, _id) WHERE _type <> 'poly_index';
@@ -0,0 +1,7 @@
+ALTER TABLE data ADD COLUMN random_key INTEGER;
+UPDATE data SET random_key = random();
+
+CREATE INDEX random_key_idx ON data (container, _type, random_key);
+
+DROP INDEX _id_idx;
+CREATE INDEX _id_idx ON data (container, _type, _id, random_key);
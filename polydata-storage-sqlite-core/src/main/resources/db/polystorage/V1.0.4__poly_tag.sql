@@ -0,0 +1,21 @@
+CREATE TABLE IF NOT EXISTS poly_tag (
+  container TEXT,
+  tag TEXT,
+  poly_rowid INTEGER,
+  update_date TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+  random_key INTEGER,
+  PRIMARY KEY (container, tag, poly_rowid)
+) WITHOUT ROWID;
+
+CREATE INDEX poly_tag_update_date_idx ON poly_tag(container, tag, update_date, poly_rowid);
+CREATE INDEX poly_tag_random_key_idx ON poly_tag(container, tag, random_key);
+CREATE INDEX poly_tag_poly_idx ON poly_tag(poly_rowid);
+
+INSERT OR IGNORE INTO poly_tag (container, tag, poly_rowid, update_date, random_key)
+SELECT i.container, substr(i._id, 6), d.id, MAX(i.update_date), d.random_key
+FROM data i
+JOIN data d ON d.container = i.container AND d._type = 'poly' AND d._id = json_extract(i.data, '$._id')
+WHERE i._type = 'poly_index' AND i._id LIKE 'tags:%'
+GROUP BY i.container, i._id, d.id;
+
+DELETE FROM data WHERE _type = 'poly_index' AND _id LIKE 'tags:%';
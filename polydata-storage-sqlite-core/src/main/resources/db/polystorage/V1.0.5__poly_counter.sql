@@ -0,0 +1,13 @@
+CREATE TABLE IF NOT EXISTS poly_counter (
+  container TEXT,
+  kind TEXT,
+  name TEXT,
+  count INTEGER NOT NULL DEFAULT 0,
+  PRIMARY KEY (container, kind, name)
+) WITHOUT ROWID;
+
+INSERT INTO poly_counter (container, kind, name, count)
+SELECT container, 'type', _type, COUNT(*) FROM data GROUP BY container, _type;
+
+INSERT INTO poly_counter (container, kind, name, count)
+SELECT container, 'tag', tag, COUNT(*) FROM poly_tag GROUP BY container, tag;
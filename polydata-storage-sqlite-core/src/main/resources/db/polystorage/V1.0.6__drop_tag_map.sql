@@ -0,0 +1,5 @@
+DELETE FROM data WHERE _type = 'polymap' AND _id = 'tags';
+
+DELETE FROM poly_counter WHERE kind = 'type' AND name = 'polymap';
+INSERT INTO poly_counter (container, kind, name, count)
+SELECT container, 'type', _type, COUNT(*) FROM data WHERE _type = 'polymap' GROUP BY container, _type;
@@ -0,0 +1,5 @@
+CREATE TABLE IF NOT EXISTS poly_field_index (
+  container TEXT,
+  field TEXT,
+  PRIMARY KEY (container, field)
+) WITHOUT ROWID;
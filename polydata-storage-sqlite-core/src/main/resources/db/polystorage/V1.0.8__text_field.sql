@@ -0,0 +1,6 @@
+CREATE TABLE IF NOT EXISTS poly_text_field (
+  container TEXT,
+  field TEXT,
+  position INTEGER,
+  PRIMARY KEY (container, field)
+) WITHOUT ROWID;
@@ -0,0 +1,7 @@
+DROP INDEX IF EXISTS update_date_idx;
+CREATE INDEX update_date_idx ON data (container, _type, update_date, id);
+CREATE INDEX create_date_idx ON data (container, _type, create_date, id);
+
+ALTER TABLE poly_tag ADD COLUMN create_date TIMESTAMP;
+UPDATE poly_tag SET create_date = (SELECT create_date FROM data WHERE data.id = poly_tag.poly_rowid);
+CREATE INDEX poly_tag_create_date_idx ON poly_tag(container, tag, create_date, poly_rowid);
@@ -8,9 +8,24 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.notNullValue;
@@ -224,4 +239,878 @@ public class SQLiteStorageTest {
         assertThat(basicPoly3._id(), is("id_0"));
     }
 
+    @Test
+    public void testPooledConnections() throws Exception {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        sqLiteStorage.enableConnectionPool(4);
+
+        for (int i = 0; i < 20; i++) {
+            BasicPoly poly = BasicPoly.newPoly("id_" + i);
+            poly.put(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag" + i));
+            sqLiteStorage.persist("main", poly);
+        }
+
+        try (Statement statement = sqLiteStorage.fetchConnection().createStatement();
+             ResultSet journalMode = statement.executeQuery("PRAGMA journal_mode")) {
+            assertThat(journalMode.getString(1), is("wal"));
+        }
+
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            String id = "id_" + (i % 20);
+            futures.add(executorService.submit(() -> sqLiteStorage.fetchById("main", id).isPresent()));
+        }
+        futures.add(executorService.submit(() -> sqLiteStorage.persist("main", BasicPoly.newPoly("id_new")) != null));
+        for (Future<Boolean> future : futures) {
+            assertThat(future.get(), is(true));
+        }
+        executorService.shutdown();
+
+        assertThat(sqLiteStorage.fetchPolyCount("main"), is(21L));
+        sqLiteStorage.closeDb();
+    }
+
+    @Test
+    public void testPooledReopenAfterClose() {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        sqLiteStorage.enableConnectionPool(2);
+        for (int i = 0; i < 5; i++) {
+            sqLiteStorage.persist("main", BasicPoly.newPoly("id_" + i).with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag" + (i % 2))));
+        }
+
+        EmbeddedPolyQuery query = EmbeddedPolyQuery.builder().itemPerPage(null)
+                .tagExpression(TagExpression.or(TagExpression.tag("tag0"), TagExpression.tag("tag1"))).build();
+        try (Stream<BasicPoly> stream = sqLiteStorage.stream("main", query)) {
+            sqLiteStorage.closeDb();
+            // statement cache of borrowed connection is kept until stream releases it
+            assertThat(sqLiteStorage.fetchStatementCacheMisses() > 0, is(true));
+            assertThat(stream.count(), is(5L));
+        }
+        assertThat(sqLiteStorage.fetchStatementCacheMisses(), is(0L));
+
+        assertThat(sqLiteStorage.isPooled(), is(true));
+        assertThat(sqLiteStorage.fetchById("main", "id_1").isPresent(), is(true));
+        assertThat(sqLiteStorage.readPool, is(notNullValue()));
+        assertThat(sqLiteStorage.readPool.connections().size(), is(1));
+        sqLiteStorage.closeDb();
+    }
+
+    @Test
+    public void testStatementCache() {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+
+        sqLiteStorage.persist("main", BasicPoly.newPoly("test"));
+        sqLiteStorage.fetchById("main", "test");
+        long misses = sqLiteStorage.fetchStatementCacheMisses();
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(sqLiteStorage.fetchById("main", "test").isPresent(), is(true));
+        }
+
+        assertThat(sqLiteStorage.fetchStatementCacheMisses(), is(misses));
+        assertThat(sqLiteStorage.fetchStatementCacheHits() >= 10, is(true));
+
+        // multi-get statement text does not depend on number of ids
+        sqLiteStorage.fetchByIds("main", Arrays.asList("test"));
+        misses = sqLiteStorage.fetchStatementCacheMisses();
+        assertThat(sqLiteStorage.fetchByIds("main", Arrays.asList("test", "missing")).size(), is(1));
+        assertThat(sqLiteStorage.fetchByIds("main", Arrays.asList("test", "missing", "other")).size(), is(1));
+        assertThat(sqLiteStorage.fetchStatementCacheMisses(), is(misses));
+        sqLiteStorage.closeDb();
+    }
+
+    @Test(expected = EmbeddedStorageException.class)
+    public void testTagIndexWriteRejected() {
+        fetchStorage().persistIndex("main", Collections.singletonMap(EmbeddedPolyConstants.TAGS_KEY, "tag1"), BasicPoly.newPoly("id_1"));
+    }
+
+    @Test(expected = EmbeddedStorageException.class)
+    public void testInvalidStatementCacheSize() {
+        fetchStorage().setStatementCacheSize(0);
+    }
+
+    @Test
+    public void testPolyUpsert() throws Exception {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        Connection connection = sqLiteStorage.fetchConnection();
+
+        BasicPoly poly = BasicPoly.newPoly("test").with("value", "1");
+        assertThat(sqLiteStorage.upsertRawPoly(connection, EmbeddedPolyConstants.TYPE_DATA, "main", "test", poly), is(true));
+
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("UPDATE data SET create_date = '2000-01-01 00:00:00', update_date = '2000-01-01 00:00:00'");
+        }
+
+        poly.put("value", "2");
+        assertThat(sqLiteStorage.upsertRawPoly(connection, EmbeddedPolyConstants.TYPE_DATA, "main", "test", poly), is(false));
+
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT COUNT(*), MIN(create_date), MIN(update_date) FROM data")) {
+            assertThat(resultSet.getInt(1), is(1));
+            assertThat(resultSet.getString(2), is("2000-01-01 00:00:00"));
+            assertThat(resultSet.getString(3).equals("2000-01-01 00:00:00"), is(false));
+        }
+        assertThat(sqLiteStorage.fetchById("main", "test").get().fetch("value"), is("2"));
+    }
+
+    @Test
+    public void testPersistAll() {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        sqLiteStorage.setPersistBatchSize(10);
+
+        sqLiteStorage.persist("main", BasicPoly.newPoly("id_0").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag1")));
+
+        List<BasicPoly> polys = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            BasicPoly poly = BasicPoly.newPoly("id_" + i);
+            poly.put(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag1", "tag" + (i % 2 + 2)));
+            polys.add(poly);
+        }
+        polys.add(new BasicPoly());
+
+        List<PersistResult> results = sqLiteStorage.persistAll("main", polys);
+        assertThat(results.size(), is(26));
+        assertThat(results.get(0).getStatus(), is(PersistResult.Status.UPDATED));
+        assertThat(results.get(1).getStatus(), is(PersistResult.Status.INSERTED));
+        assertThat(results.get(24).getId(), is("id_24"));
+        assertThat(results.get(25).isFailed(), is(true));
+
+        assertThat(sqLiteStorage.fetchPolyCount("main"), is(25L));
+        BasicPoly tags = sqLiteStorage.fetchTags("main");
+        assertThat(tags.fetch("tag1"), is(25));
+        assertThat(tags.fetch("tag2"), is(13));
+        assertThat(tags.fetch("tag3"), is(12));
+
+        PolyList list = sqLiteStorage.queryIndex("main", EmbeddedPolyQuery.builder().tag("tag3").itemPerPage(100L).build());
+        assertThat(list.list().size(), is(12));
+    }
+
+    @Test
+    public void testWriteQueue() throws Exception {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        sqLiteStorage.persist("main", BasicPoly.newPoly("removed"));
+
+        List<Future<BasicPoly>> futures = new ArrayList<>();
+        try (SQLiteWriteQueue writeQueue = new SQLiteWriteQueue(sqLiteStorage, 16, 5)) {
+            ExecutorService executorService = Executors.newFixedThreadPool(8);
+            for (int i = 0; i < 50; i++) {
+                BasicPoly poly = BasicPoly.newPoly("id_" + i);
+                poly.put(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag1"));
+                futures.add(executorService.submit(() -> writeQueue.submitPersist("main", poly).get()));
+            }
+            for (Future<BasicPoly> future : futures) {
+                assertThat(future.get(), is(notNullValue()));
+            }
+            executorService.shutdown();
+
+            assertThat(writeQueue.submitRemove("main", "removed").get(), is(true));
+        }
+
+        assertThat(sqLiteStorage.fetchPolyCount("main"), is(50L));
+        assertThat(sqLiteStorage.fetchTags("main").fetch("tag1"), is(50));
+    }
+
+    @Test
+    public void testWriteQueueCloseCompletesSubmitted() throws Exception {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        SQLiteWriteQueue writeQueue = new SQLiteWriteQueue(sqLiteStorage, 16, 1);
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        List<Future<CompletableFuture<BasicPoly>>> submissions = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            BasicPoly poly = BasicPoly.newPoly("id_" + i);
+            submissions.add(executorService.submit(() -> writeQueue.submitPersist("main", poly)));
+        }
+        writeQueue.close();
+        executorService.shutdown();
+
+        long persisted = 0;
+        for (Future<CompletableFuture<BasicPoly>> submission : submissions) {
+            // every submitted operation is either written or failed, pending one times out
+            if (submission.get().handle((poly, e) -> e == null).get(10, TimeUnit.SECONDS)) {
+                persisted++;
+            }
+        }
+        assertThat(sqLiteStorage.fetchPolyCount("main"), is(persisted));
+    }
+
+    @Test
+    public void testKeysetPagination() throws Exception {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        for (int i = 0; i < 7; i++) {
+            sqLiteStorage.persist("main", BasicPoly.newPoly("id_" + i));
+        }
+        try (Statement statement = sqLiteStorage.fetchConnection().createStatement()) {
+            statement.executeUpdate("UPDATE data SET update_date = '2000-01-01 00:00:00' WHERE _id IN ('id_0', 'id_1', 'id_2')");
+        }
+
+        List<String> ids = new ArrayList<>();
+        String token = null;
+        int pages = 0;
+        do {
+            EmbeddedPolyQuery query = EmbeddedPolyQuery.builder().itemPerPage(2L).continuationToken(token).build();
+            EmbeddedPolyList page = sqLiteStorage.query("main", query);
+            page.list().forEach(poly -> ids.add(poly._id()));
+            token = page.getContinuationToken();
+            pages++;
+        } while (token != null);
+
+        assertThat(pages, is(4));
+        assertThat(ids, is(Arrays.asList("id_6", "id_5", "id_4", "id_3", "id_2", "id_1", "id_0")));
+    }
+
+    @Test
+    public void testRandomSampling() {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        List<BasicPoly> polys = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            BasicPoly poly = BasicPoly.newPoly("id_" + i);
+            poly.put(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList(i % 5 == 0 ? "tag5" : "tag"));
+            polys.add(poly);
+        }
+        sqLiteStorage.persistAll("main", polys);
+
+        EmbeddedPolyQuery query = EmbeddedPolyQuery.builder().itemPerPage(20L).randomOrder(true).randomSeed(42L).build();
+        EmbeddedPolyList sample = sqLiteStorage.query("main", query);
+        EmbeddedPolyList sample2 = sqLiteStorage.query("main", query);
+        assertThat(sample.list().size(), is(20));
+        assertThat(sample.list(), is(sample2.list()));
+        assertThat(sample.list().stream().map(BasicPoly::_id).distinct().count(), is(20L));
+
+        EmbeddedPolyQuery tagQuery = EmbeddedPolyQuery.builder().itemPerPage(20L).randomOrder(true).tag("tag5").build();
+        PolyList tagSample = sqLiteStorage.queryIndex("main", tagQuery);
+        assertThat(tagSample.list().size(), is(10));
+    }
+
+    @Test
+    public void testTagQuerySkipsRemovedPolys() {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        for (int i = 0; i < 5; i++) {
+            sqLiteStorage.persist("main", BasicPoly.newPoly("id_" + i).with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag")));
+        }
+        sqLiteStorage.removePoly("main", "id_3");
+
+        EmbeddedPolyQuery query = EmbeddedPolyQuery.builder().tag("tag").itemPerPage(3L).build();
+        EmbeddedPolyList page = sqLiteStorage.queryIndex("main", query);
+        assertThat(page.list().size(), is(3));
+        assertThat(page.list().get(0)._id(), is("id_4"));
+        assertThat(page.list().get(1)._id(), is("id_2"));
+
+        query.setContinuationToken(page.getContinuationToken());
+        EmbeddedPolyList page2 = sqLiteStorage.queryIndex("main", query);
+        assertThat(page2.list().size(), is(1));
+        assertThat(page2.list().get(0)._id(), is("id_0"));
+    }
+
+    @Test
+    public void testTagPostings() {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        sqLiteStorage.persist("main", BasicPoly.newPoly("id_1").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag1", "tag2")));
+        sqLiteStorage.persist("main", BasicPoly.newPoly("id_1").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag2", "tag3")));
+        sqLiteStorage.persistAll("main", Arrays.asList(
+                BasicPoly.newPoly("id_2").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag2")),
+                BasicPoly.newPoly("id_2").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag3"))));
+
+        assertThat(sqLiteStorage.fetchTagCount("main", "tag1"), is(0L));
+        assertThat(sqLiteStorage.fetchTagCount("main", "tag2"), is(1L));
+        assertThat(sqLiteStorage.fetchTagCount("main", "tag3"), is(2L));
+
+        EmbeddedPolyList tag3 = sqLiteStorage.queryIndex("main", EmbeddedPolyQuery.builder().tag("tag3").build());
+        assertThat(tag3.list().size(), is(2));
+
+        sqLiteStorage.removePoly("main", "id_1");
+        assertThat(sqLiteStorage.fetchTagCount("main", "tag2"), is(0L));
+        assertThat(sqLiteStorage.fetchTagCount("main", "tag3"), is(1L));
+    }
+
+    @Test
+    public void testTagExpressionQuery() {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        for (int i = 0; i < 20; i++) {
+            List<String> tags = new ArrayList<>();
+            if (i % 2 == 0) {
+                tags.add("even");
+            }
+            if (i % 3 == 0) {
+                tags.add("three");
+            }
+            if (i % 5 == 0) {
+                tags.add("five");
+            }
+            sqLiteStorage.persist("main", BasicPoly.newPoly("id_" + i).with(EmbeddedPolyConstants.TAGS_KEY, tags));
+        }
+
+        EmbeddedPolyQuery query = EmbeddedPolyQuery.builder().itemPerPage(100L)
+                .tagExpression(TagExpression.and(TagExpression.tag("even"), TagExpression.tag("three"), TagExpression.not(TagExpression.tag("five"))))
+                .build();
+        EmbeddedPolyList list = sqLiteStorage.queryIndex("main", query);
+        assertThat(list.list().size(), is(3));
+        assertThat(list.list().get(0)._id(), is("id_18"));
+        assertThat(list.list().get(2)._id(), is("id_6"));
+
+        query.setTagExpression(TagExpression.or(TagExpression.tag("three"), TagExpression.tag("five")));
+        EmbeddedPolyList union = sqLiteStorage.queryIndex("main", query);
+        assertThat(union.list().size(), is(9));
+
+        query.setTagExpression(TagExpression.not(TagExpression.or(TagExpression.tag("even"), TagExpression.tag("three"))));
+        EmbeddedPolyList negation = sqLiteStorage.queryIndex("main", query);
+        assertThat(negation.list().size(), is(7));
+
+        query.setItemPerPage(1L);
+        query.setTagExpression(TagExpression.tag("five"));
+        EmbeddedPolyList page = sqLiteStorage.queryIndex("main", query);
+        assertThat(page.list().get(0)._id(), is("id_15"));
+        query.setContinuationToken(page.getContinuationToken());
+        EmbeddedPolyList page2 = sqLiteStorage.queryIndex("main", query);
+        assertThat(page2.list().get(0)._id(), is("id_10"));
+    }
+
+    @Test
+    public void testTagExpressionPageWindow() {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        List<BasicPoly> polys = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            polys.add(BasicPoly.newPoly("id_" + i).with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList(i % 5 == 0 ? "five" : "other")).with("n", i));
+        }
+        sqLiteStorage.persistAll("main", polys);
+        for (int i = 299; i >= 0; i--) {
+            if (i % 5 != 0) {
+                expected.add("id_" + i);
+            }
+        }
+
+        EmbeddedPolyQuery query = EmbeddedPolyQuery.builder().itemPerPage(10L).page(2L)
+                .tagExpression(TagExpression.not(TagExpression.tag("five"))).build();
+        EmbeddedPolyList page = sqLiteStorage.queryIndex("main", query);
+        assertThat(page.list().size(), is(10));
+        assertThat(page.list().get(0)._id(), is(expected.get(20)));
+        assertThat(page.list().get(9)._id(), is(expected.get(29)));
+
+        query.setContinuationToken(page.getContinuationToken());
+        EmbeddedPolyList nextPage = sqLiteStorage.queryIndex("main", query);
+        assertThat(nextPage.list().size(), is(10));
+        assertThat(nextPage.list().get(0)._id(), is(expected.get(30)));
+
+        query.setContinuationToken(null);
+        query.setPage(0L);
+        query.setPredicates(Arrays.asList(PolyPredicate.lt("n", 50)));
+        EmbeddedPolyList filtered = sqLiteStorage.queryIndex("main", query);
+        assertThat(filtered.list().size(), is(10));
+        assertThat(filtered.list().get(0)._id(), is("id_49"));
+        assertThat(filtered.list().get(9)._id(), is("id_38"));
+
+        query.setPredicates(null);
+        query.setPage(23L);
+        EmbeddedPolyList lastPage = sqLiteStorage.queryIndex("main", query);
+        assertThat(lastPage.list().size(), is(10));
+        assertThat(lastPage.list().get(9)._id(), is("id_1"));
+    }
+
+    @Test
+    public void testPolyBitmap() {
+        PolyBitmap dense = new PolyBitmap();
+        for (long i = 0; i < 10_000; i++) {
+            dense.add(i * 2);
+        }
+        PolyBitmap sparse = PolyBitmap.of(1, 2, 4, 70_000, 19_998, PolyBitmap.MAX_VALUE);
+
+        assertThat(dense.cardinality(), is(10_000L));
+        assertThat(dense.and(sparse).toJSON(), is("[2,4,19998]"));
+        assertThat(dense.or(sparse).cardinality(), is(10_003L));
+        assertThat(sparse.andNot(dense).toJSON(), is("[1,70000," + PolyBitmap.MAX_VALUE + "]"));
+        assertThat(dense.andNot(dense).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        sqLiteStorage.persist("main", BasicPoly.newPoly("id_1").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag1", "tag2")));
+        sqLiteStorage.persist("main", BasicPoly.newPoly("id_1").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag2", "tag3")));
+        sqLiteStorage.persistAll("main", Arrays.asList(
+                BasicPoly.newPoly("id_2").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag1")),
+                BasicPoly.newPoly("id_3").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag1", "tag3"))));
+        sqLiteStorage.persist("other", BasicPoly.newPoly("id_1"));
+
+        assertThat(sqLiteStorage.fetchPolyCount("main"), is(3L));
+        assertThat(sqLiteStorage.fetchPolyCount("other"), is(1L));
+        assertThat(sqLiteStorage.fetchTagCount("main", "tag1"), is(2L));
+        assertThat(sqLiteStorage.fetchTagCount("main", "tag3"), is(2L));
+
+        sqLiteStorage.removePoly("main", "id_3");
+        assertThat(sqLiteStorage.fetchPolyCount("main"), is(2L));
+        assertThat(sqLiteStorage.fetchTagCount("main", "tag1"), is(1L));
+        assertThat(sqLiteStorage.verifyCounters("main"), is(true));
+
+        try (Statement statement = sqLiteStorage.fetchConnection().createStatement()) {
+            statement.executeUpdate("UPDATE poly_counter SET count = 10 WHERE container = 'main' AND kind = 'tag'");
+        }
+        assertThat(sqLiteStorage.verifyCounters("main"), is(false));
+        sqLiteStorage.rebuildCounters("main");
+        assertThat(sqLiteStorage.verifyCounters("main"), is(true));
+        assertThat(sqLiteStorage.fetchTagCount("main", "tag2"), is(1L));
+        assertThat(sqLiteStorage.fetchPolyCount("main"), is(2L));
+    }
+
+    @Test
+    public void testStream() {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        sqLiteStorage.setFetchSize(7);
+        List<BasicPoly> polys = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            polys.add(BasicPoly.newPoly("id_" + i).with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList(i % 2 == 0 ? "even" : "odd")));
+        }
+        sqLiteStorage.persistAll("main", polys);
+
+        try (Stream<BasicPoly> stream = sqLiteStorage.stream("main", EmbeddedPolyQuery.builder().itemPerPage(null).build())) {
+            assertThat(stream.count(), is(50L));
+        }
+        try (Stream<BasicPoly> stream = sqLiteStorage.stream("main", EmbeddedPolyQuery.builder().tag("even").itemPerPage(null).build())) {
+            assertThat(stream.filter(poly -> poly._id().startsWith("id_1")).count(), is(5L));
+        }
+
+        EmbeddedPolyIterator iterator = sqLiteStorage.iterator("main", EmbeddedPolyQuery.builder().itemPerPage(3L).build());
+        assertThat(iterator.next()._id(), is("id_49"));
+        assertThat(iterator.hasNext(), is(true));
+        iterator.close();
+        assertThat(iterator.hasNext(), is(false));
+
+        // stream connection is released, writes are not blocked
+        sqLiteStorage.persist("main", BasicPoly.newPoly("id_50"));
+        assertThat(sqLiteStorage.fetchPolyCount("main"), is(51L));
+    }
+
+    @Test
+    public void testProjection() throws Exception {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        BasicPoly poly = BasicPoly.newPoly("id_1").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag1"));
+        poly.put("title", "Title");
+        poly.put("thumbnail", Arrays.asList("a.png", "b.png"));
+        poly.put("body", "long text");
+        sqLiteStorage.persist("main", poly);
+
+        EmbeddedPolyQuery query = EmbeddedPolyQuery.builder().fields(Arrays.asList("title", "thumbnail")).build();
+        EmbeddedPolyList list = sqLiteStorage.query("main", query);
+        BasicPoly projected = list.list().get(0);
+        assertThat(projected._id(), is("id_1"));
+        assertThat(projected.fetch("title"), is("Title"));
+        assertThat(projected.fetch("thumbnail"), is(Arrays.asList("a.png", "b.png")));
+        assertThat(projected.containsKey("body"), is(false));
+
+        query.setTag("tag1");
+        EmbeddedPolyList tagList = sqLiteStorage.queryIndex("main", query);
+        assertThat(tagList.list().get(0).containsKey("body"), is(false));
+        assertThat(tagList.list().get(0).fetch("title"), is("Title"));
+
+        BasicPoly decoded = new PolyProjection(Arrays.asList("title")).decode(EmbeddedPolyConstants.POLY_OBJECT_MAPPER.writeValueAsString(poly));
+        assertThat(decoded.keySet().size(), is(2));
+        assertThat(decoded.fetch("title"), is("Title"));
+    }
+
+    @Test
+    public void testFieldIndex() {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        sqLiteStorage.createFieldIndex("main", "author");
+        sqLiteStorage.createFieldIndex("main", "price");
+        assertThat(sqLiteStorage.fetchFieldIndexes("main"), is(Arrays.asList("author", "price")));
+
+        for (int i = 0; i < 20; i++) {
+            BasicPoly poly = BasicPoly.newPoly("id_" + i).with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag" + i % 2));
+            poly.put("author", "author_" + i % 4);
+            poly.put("price", i * 10);
+            sqLiteStorage.persist("main", poly);
+        }
+
+        EmbeddedPolyQuery query = EmbeddedPolyQuery.builder().itemPerPage(100L)
+                .predicates(Arrays.asList(PolyPredicate.eq("author", "author_1"))).build();
+        EmbeddedPolyList byAuthor = sqLiteStorage.query("main", query);
+        assertThat(byAuthor.list().size(), is(5));
+
+        query.setPredicates(Arrays.asList(PolyPredicate.between("price", 50, 100), PolyPredicate.lt("price", 100)));
+        EmbeddedPolyList byPrice = sqLiteStorage.query("main", query);
+        assertThat(byPrice.list().size(), is(5));
+
+        query.setTag("tag1");
+        query.setPredicates(Arrays.asList(PolyPredicate.gte("price", 150)));
+        EmbeddedPolyList byTagAndPrice = sqLiteStorage.queryIndex("main", query);
+        assertThat(byTagAndPrice.list().size(), is(3));
+
+        sqLiteStorage.dropFieldIndex("main", "author");
+        assertThat(sqLiteStorage.fetchFieldIndexes("main"), is(Arrays.asList("price")));
+    }
+
+    @Test
+    public void testFullTextSearch() {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        BasicPoly existing = BasicPoly.newPoly("existing").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag1"));
+        existing.put("title", "Quick brown fox");
+        sqLiteStorage.persist("main", existing);
+
+        sqLiteStorage.enableFullText("main", Arrays.asList("title", "body"));
+        assertThat(sqLiteStorage.fetchFullTextFields("main"), is(Arrays.asList("title", "body")));
+
+        List<BasicPoly> polys = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            BasicPoly poly = BasicPoly.newPoly("id_" + i).with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag" + i % 2));
+            poly.put("title", "Poly " + i);
+            poly.put("body", i % 3 == 0 ? "lazy dog and fox" : "lazy cat");
+            polys.add(poly);
+        }
+        sqLiteStorage.persistAll("main", polys);
+
+        EmbeddedPolyQuery query = EmbeddedPolyQuery.builder().textQuery("fox").itemPerPage(100L).build();
+        EmbeddedPolyList foxes = sqLiteStorage.query("main", query);
+        assertThat(foxes.list().size(), is(5));
+        assertThat(foxes.getContinuationToken(), is(nullValue()));
+
+        query.setTag("tag0");
+        EmbeddedPolyList taggedFoxes = sqLiteStorage.queryIndex("main", query);
+        assertThat(taggedFoxes.list().size(), is(2));
+
+        query.setTag(null);
+        query.setTextQuery("lazy");
+        query.setItemPerPage(4L);
+        query.setPage(2L);
+        EmbeddedPolyList lastPage = sqLiteStorage.query("main", query);
+        assertThat(lastPage.list().size(), is(2));
+
+        BasicPoly updated = BasicPoly.newPoly("id_0");
+        updated.put("title", "Renamed");
+        sqLiteStorage.persist("main", updated);
+        sqLiteStorage.removePoly("main", "existing");
+        EmbeddedPolyList remaining = sqLiteStorage.query("main", EmbeddedPolyQuery.builder().textQuery("fox").build());
+        assertThat(remaining.list().size(), is(3));
+
+        sqLiteStorage.rebuildFullText("main");
+        assertThat(sqLiteStorage.query("main", EmbeddedPolyQuery.builder().textQuery("renamed").build()).list().size(), is(1));
+
+        sqLiteStorage.disableFullText("main");
+        assertThat(sqLiteStorage.fetchFullTextFields("main").isEmpty(), is(true));
+    }
+
+    @Test
+    public void testFetchByIds() {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        List<BasicPoly> polys = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            polys.add(BasicPoly.newPoly("id_" + i));
+        }
+        sqLiteStorage.persistAll("main", polys);
+
+        List<String> ids = new ArrayList<>();
+        for (int i = 1999; i >= 0; i -= 2) {
+            ids.add("id_" + i);
+        }
+        ids.add("missing");
+        ids.add("id_1999");
+        List<BasicPoly> fetched = sqLiteStorage.fetchByIds("main", ids);
+        assertThat(fetched.size(), is(1000));
+        assertThat(fetched.get(0)._id(), is("id_1999"));
+        assertThat(fetched.get(999)._id(), is("id_1"));
+
+        assertThat(sqLiteStorage.fetchByIds("other", ids).isEmpty(), is(true));
+    }
+
+    @Test
+    public void testQueryCache() throws Exception {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        sqLiteStorage.enableQueryCache(10);
+        for (int i = 0; i < 5; i++) {
+            sqLiteStorage.persist("main", BasicPoly.newPoly("id_" + i).with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag1")));
+        }
+
+        EmbeddedPolyQuery query = EmbeddedPolyQuery.builder().tag("tag1").build();
+        assertThat(((EmbeddedPolyList) sqLiteStorage.queryIndex("main", query)).list().size(), is(5));
+        assertThat(((EmbeddedPolyList) sqLiteStorage.queryIndex("main", query)).list().size(), is(5));
+        assertThat(((EmbeddedPolyList) sqLiteStorage.query("main", query)).list().size(), is(5));
+        EmbeddedQueryCache queryCache = sqLiteStorage.getQueryCache();
+        assertThat(queryCache.getHits(), is(1L));
+        assertThat(queryCache.getMisses(), is(2L));
+
+        sqLiteStorage.persist("other", BasicPoly.newPoly("other_id").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag1")));
+        sqLiteStorage.queryIndex("main", query);
+        assertThat(queryCache.getHits(), is(2L));
+
+        sqLiteStorage.persist("main", BasicPoly.newPoly("id_5").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag1")));
+        assertThat(((EmbeddedPolyList) sqLiteStorage.queryIndex("main", query)).list().size(), is(6));
+
+        sqLiteStorage.removePoly("main", "id_0");
+        assertThat(((EmbeddedPolyList) sqLiteStorage.queryIndex("main", query)).list().size(), is(5));
+
+        sqLiteStorage.persistAll("main", Arrays.asList(BasicPoly.newPoly("id_6").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag1"))));
+        assertThat(((EmbeddedPolyList) sqLiteStorage.queryIndex("main", query)).list().size(), is(6));
+
+        try (SQLiteWriteQueue writeQueue = new SQLiteWriteQueue(sqLiteStorage, 10, 10L)) {
+            writeQueue.submitRemove("main", "id_1").get();
+        }
+        assertThat(((EmbeddedPolyList) sqLiteStorage.queryIndex("main", query)).list().size(), is(5));
+
+        EmbeddedPolyList cachedPage = sqLiteStorage.queryIndex("main", query);
+        cachedPage.list().get(0).put("value", "modified");
+        ((List<Object>) cachedPage.list().get(0).get(EmbeddedPolyConstants.TAGS_KEY)).add("tag2");
+        EmbeddedPolyList page = sqLiteStorage.queryIndex("main", query);
+        assertThat(page.list().get(0).containsKey("value"), is(false));
+        assertThat(page.list().get(0).get(EmbeddedPolyConstants.TAGS_KEY), is(Arrays.asList("tag1")));
+
+        long version = queryCache.version("main");
+        sqLiteStorage.rebuildCounters("main");
+        assertThat(queryCache.version("main"), is(version + 1));
+
+        long misses = queryCache.getMisses();
+        query.setRandomOrder(true);
+        sqLiteStorage.queryIndex("main", query);
+        sqLiteStorage.queryIndex("main", query);
+        assertThat(queryCache.getMisses(), is(misses));
+    }
+
+    @Test
+    public void testSort() throws Exception {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        for (int i = 0; i < 5; i++) {
+            sqLiteStorage.persist("main", BasicPoly.newPoly("id_" + i).with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag1")));
+        }
+        try (Statement statement = sqLiteStorage.fetchConnection().createStatement()) {
+            statement.executeUpdate("UPDATE data SET create_date = '2020-01-1' || substr(_id, 4) || ' 00:00:00', " +
+                    "update_date = '2020-02-1' || (4 - substr(_id, 4)) || ' 00:00:00' WHERE _type = 'poly'");
+            statement.executeUpdate("UPDATE poly_tag SET create_date = (SELECT create_date FROM data WHERE id = poly_rowid), " +
+                    "update_date = (SELECT update_date FROM data WHERE id = poly_rowid)");
+        }
+
+        EmbeddedPolyQuery query = EmbeddedPolyQuery.builder().itemPerPage(2L).sort(PolySort.CREATE_DATE_ASC).build();
+        EmbeddedPolyList firstPage = sqLiteStorage.query("main", query);
+        assertThat(firstPage.list().get(0)._id(), is("id_0"));
+        assertThat(firstPage.list().get(1)._id(), is("id_1"));
+        query.setContinuationToken(firstPage.getContinuationToken());
+        EmbeddedPolyList secondPage = sqLiteStorage.query("main", query);
+        assertThat(secondPage.list().get(0)._id(), is("id_2"));
+        assertThat(secondPage.list().get(1)._id(), is("id_3"));
+
+        query.setContinuationToken(null);
+        query.setSort(PolySort.CREATE_DATE_DESC);
+        assertThat(((EmbeddedPolyList) sqLiteStorage.query("main", query)).list().get(0)._id(), is("id_4"));
+        query.setSort(PolySort.UPDATE_DATE_ASC);
+        assertThat(((EmbeddedPolyList) sqLiteStorage.query("main", query)).list().get(0)._id(), is("id_4"));
+        query.setSort(null);
+        assertThat(((EmbeddedPolyList) sqLiteStorage.query("main", query)).list().get(0)._id(), is("id_0"));
+
+        query.setTag("tag1");
+        query.setSort(PolySort.CREATE_DATE_DESC);
+        EmbeddedPolyList taggedPage = sqLiteStorage.queryIndex("main", query);
+        assertThat(taggedPage.list().get(0)._id(), is("id_4"));
+        query.setContinuationToken(taggedPage.getContinuationToken());
+        assertThat(((EmbeddedPolyList) sqLiteStorage.queryIndex("main", query)).list().get(0)._id(), is("id_2"));
+    }
+
+    @Test
+    public void testDateRange() throws Exception {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        for (int i = 0; i < 5; i++) {
+            sqLiteStorage.persist("main", BasicPoly.newPoly("id_" + i).with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag1")));
+        }
+        try (Statement statement = sqLiteStorage.fetchConnection().createStatement()) {
+            statement.executeUpdate("UPDATE data SET create_date = '2020-01-1' || substr(_id, 4) || ' 00:00:00', " +
+                    "update_date = '2020-02-1' || (4 - substr(_id, 4)) || ' 00:00:00' WHERE _type = 'poly'");
+            statement.executeUpdate("UPDATE poly_tag SET create_date = (SELECT create_date FROM data WHERE id = poly_rowid), " +
+                    "update_date = (SELECT update_date FROM data WHERE id = poly_rowid)");
+        }
+
+        EmbeddedPolyQuery query = EmbeddedPolyQuery.builder().itemPerPage(2L).sort(PolySort.UPDATE_DATE_ASC)
+                .updatedSince(Date.from(Instant.parse("2020-02-12T00:00:00Z"))).build();
+        EmbeddedPolyList firstPage = sqLiteStorage.query("main", query);
+        assertThat(firstPage.list().get(0)._id(), is("id_2"));
+        assertThat(firstPage.list().get(1)._id(), is("id_1"));
+        query.setContinuationToken(firstPage.getContinuationToken());
+        EmbeddedPolyList lastPage = sqLiteStorage.query("main", query);
+        assertThat(lastPage.list().size(), is(1));
+        assertThat(lastPage.list().get(0)._id(), is("id_0"));
+
+        query.setContinuationToken(null);
+        query.setTag("tag1");
+        assertThat(((EmbeddedPolyList) sqLiteStorage.queryIndex("main", query)).list().get(0)._id(), is("id_2"));
+
+        EmbeddedPolyQuery createdQuery = EmbeddedPolyQuery.builder()
+                .createdSince(Date.from(Instant.parse("2020-01-11T00:00:00Z")))
+                .createdUntil(Date.from(Instant.parse("2020-01-13T00:00:00Z"))).build();
+        assertThat(((EmbeddedPolyList) sqLiteStorage.query("main", createdQuery)).list().size(), is(2));
+    }
+
+    @Test
+    public void testFacet() {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        sqLiteStorage.createFieldIndex("main", "author");
+        for (int i = 0; i < 12; i++) {
+            BasicPoly poly = BasicPoly.newPoly("id_" + i).with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("all", "tag" + i % 3));
+            poly.put("author", "author_" + i % 4);
+            poly.put("price", i);
+            sqLiteStorage.persist("main", poly);
+        }
+
+        Map<String, Long> tags = sqLiteStorage.fetchFacet("main", EmbeddedPolyQuery.builder().build(), EmbeddedPolyConstants.TAGS_KEY, 2);
+        assertThat(new ArrayList<>(tags.keySet()), is(Arrays.asList("all", "tag0")));
+        assertThat(tags.get("all"), is(12L));
+
+        EmbeddedPolyQuery query = EmbeddedPolyQuery.builder().tag("tag0").itemPerPage(1L).build();
+        Map<String, Long> authors = sqLiteStorage.fetchFacet("main", query, "author", 10);
+        assertThat(authors.size(), is(4));
+        assertThat(authors.get("author_0"), is(1L));
+
+        query.setPredicates(Arrays.asList(PolyPredicate.lt("price", 6)));
+        Map<String, Long> filteredTags = sqLiteStorage.fetchFacet("main", query, EmbeddedPolyConstants.TAGS_KEY, 10);
+        assertThat(filteredTags.get("all"), is(2L));
+        assertThat(filteredTags.get("tag0"), is(2L));
+        assertThat(filteredTags.containsKey("tag1"), is(false));
+    }
+
+    @Test
+    public void testSlowStatementLog() {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        for (int i = 0; i < 5; i++) {
+            sqLiteStorage.persist("main", BasicPoly.newPoly("id_" + i).with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag1")));
+        }
+        sqLiteStorage.enableSlowStatementLog(0, 60_000);
+
+        sqLiteStorage.query("main", EmbeddedPolyQuery.builder().build());
+        sqLiteStorage.query("main", EmbeddedPolyQuery.builder().page(1L).build());
+        sqLiteStorage.fetchByIds("main", Arrays.asList("id_0"));
+        sqLiteStorage.fetchByIds("main", Arrays.asList("id_1", "id_2", "id_3"));
+        SlowStatementLog slowStatementLog = sqLiteStorage.getSlowStatementLog();
+        assertThat(slowStatementLog.getSlowStatements(), is(4L));
+        assertThat(slowStatementLog.fetchShapeCount(), is(2));
+        assertThat(SlowStatementLog.shape("SELECT * FROM data WHERE _id IN (?,  ?, ?)"), is("SELECT * FROM data WHERE _id IN (?, ...)"));
+
+        sqLiteStorage.disableSlowStatementLog();
+        sqLiteStorage.query("main", EmbeddedPolyQuery.builder().build());
+        assertThat(slowStatementLog.getSlowStatements(), is(4L));
+    }
+
+    @Test
+    public void testTopTags() {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        sqLiteStorage.setTagRankingCapacity(2);
+        for (int i = 0; i < 6; i++) {
+            sqLiteStorage.persist("main", BasicPoly.newPoly("id_" + i).with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("all", "tag" + i % 3, "rare" + i)));
+        }
+
+        Map<String, Long> top = sqLiteStorage.topTags("main", 2);
+        assertThat(new ArrayList<>(top.keySet()), is(Arrays.asList("all", "tag0")));
+        assertThat(top.get("all"), is(6L));
+
+        sqLiteStorage.persist("main", BasicPoly.newPoly("id_6").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag2", "tag2_only")));
+        sqLiteStorage.persist("main", BasicPoly.newPoly("id_7").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag2")));
+        sqLiteStorage.removePoly("main", "id_0");
+        sqLiteStorage.removePoly("main", "id_3");
+        top = sqLiteStorage.topTags("main", 2);
+        assertThat(new ArrayList<>(top.keySet()), is(Arrays.asList("all", "tag2")));
+        assertThat(top.get("all"), is(4L));
+        assertThat(top.get("tag2"), is(4L));
+
+        Map<String, Long> allTop = sqLiteStorage.topTags("main", 3);
+        assertThat(allTop.get("tag1"), is(2L));
+        assertThat(allTop, is(sqLiteStorage.fetchFacet("main", EmbeddedPolyQuery.builder().build(), EmbeddedPolyConstants.TAGS_KEY, 3)));
+    }
+
+    @Test
+    public void testSuggestTags() {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        sqLiteStorage.persist("main", BasicPoly.newPoly("id_1").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("java", "javascript", "go")));
+        sqLiteStorage.persist("main", BasicPoly.newPoly("id_2").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("javascript", "jvm")));
+        sqLiteStorage.persist("other", BasicPoly.newPoly("id_3").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("jakarta")));
+
+        Map<String, Long> suggestions = sqLiteStorage.suggestTags("main", "ja", 10);
+        assertThat(new ArrayList<>(suggestions.keySet()), is(Arrays.asList("javascript", "java")));
+        assertThat(suggestions.get("javascript"), is(2L));
+        assertThat(new ArrayList<>(sqLiteStorage.suggestTags("main", "j", 1).keySet()), is(Arrays.asList("javascript")));
+
+        sqLiteStorage.persist("main", BasicPoly.newPoly("id_3").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("java", "jakarta")));
+        sqLiteStorage.persist("main", BasicPoly.newPoly("id_4").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("java")));
+        sqLiteStorage.removePoly("main", "id_2");
+        suggestions = sqLiteStorage.suggestTags("main", "ja", 10);
+        assertThat(new ArrayList<>(suggestions.keySet()), is(Arrays.asList("java", "jakarta", "javascript")));
+        assertThat(suggestions.get("java"), is(3L));
+        assertThat(sqLiteStorage.suggestTags("main", "jv", 10).isEmpty(), is(true));
+        assertThat(sqLiteStorage.suggestTags("main", "", 10).size(), is(4));
+    }
+
+    @Test
+    public void testFailedRemovalKeepsTagsAndCounters() throws Exception {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        sqLiteStorage.persist("main", BasicPoly.newPoly("id_1").with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag1", "tag2")));
+        try (Statement statement = sqLiteStorage.fetchConnection().createStatement()) {
+            statement.executeUpdate("CREATE TEMP TRIGGER fail_data_delete BEFORE DELETE ON data BEGIN SELECT RAISE(ABORT, 'forced failure'); END");
+        }
+
+        boolean failed = false;
+        try {
+            sqLiteStorage.removePoly("main", "id_1");
+        } catch (EmbeddedStorageException e) {
+            failed = true;
+        }
+        assertThat(failed, is(true));
+        assertThat(sqLiteStorage.fetchById("main", "id_1").isPresent(), is(true));
+        assertThat(sqLiteStorage.fetchTagCount("main", "tag1"), is(1L));
+        assertThat(sqLiteStorage.query("main", EmbeddedPolyQuery.builder().tag("tag2").build()).list().size(), is(1));
+        assertThat(sqLiteStorage.verifyCounters("main"), is(true));
+    }
+
+    @Test
+    public void testPersistAllRejectsPolyWithoutId() throws Exception {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        try (Statement statement = sqLiteStorage.fetchConnection().createStatement()) {
+            statement.executeUpdate("CREATE TEMP TRIGGER fail_data_insert BEFORE INSERT ON data WHEN NEW._id = 'bad' BEGIN SELECT RAISE(ABORT, 'forced failure'); END");
+        }
+
+        List<PersistResult> results = sqLiteStorage.persistAll("main", Arrays.asList(BasicPoly.newPoly("ok"), new BasicPoly(), BasicPoly.newPoly("bad")));
+        assertThat(results.size(), is(3));
+        assertThat(results.get(0).getStatus(), is(PersistResult.Status.INSERTED));
+        assertThat(results.get(1).isFailed(), is(true));
+        assertThat(results.get(1).getId(), is(nullValue()));
+        assertThat(results.get(2).isFailed(), is(true));
+        assertThat(results.get(2).getId(), is("bad"));
+
+        assertThat(sqLiteStorage.fetchPolyCount("main"), is(1L));
+        assertThat(sqLiteStorage.verifyCounters("main"), is(true));
+    }
+
+    @Test
+    public void testStreamConnectionStatementCache() {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        for (int i = 0; i < 5; i++) {
+            sqLiteStorage.persist("main", BasicPoly.newPoly("id_" + i).with(EmbeddedPolyConstants.TAGS_KEY, Arrays.asList("tag" + (i % 2))));
+        }
+
+        long misses = sqLiteStorage.fetchStatementCacheMisses();
+        EmbeddedPolyQuery query = EmbeddedPolyQuery.builder().itemPerPage(null)
+                .tagExpression(TagExpression.or(TagExpression.tag("tag0"), TagExpression.tag("tag1"))).build();
+        try (Stream<BasicPoly> stream = sqLiteStorage.stream("main", query)) {
+            assertThat(sqLiteStorage.fetchStatementCacheMisses() > misses, is(true));
+            assertThat(stream.count(), is(5L));
+        }
+        assertThat(sqLiteStorage.fetchStatementCacheMisses(), is(misses));
+    }
+
+    @Test
+    public void testPersistWhileStreamOpen() {
+        SQLiteStorage sqLiteStorage = fetchStorage();
+        for (int i = 0; i < 5; i++) {
+            sqLiteStorage.persist("main", BasicPoly.newPoly("id_" + i));
+        }
+
+        try (Stream<BasicPoly> stream = sqLiteStorage.stream("main", EmbeddedPolyQuery.builder().itemPerPage(null).build())) {
+            Iterator<BasicPoly> iterator = stream.iterator();
+            assertThat(iterator.hasNext(), is(true));
+            iterator.next();
+
+            sqLiteStorage.persist("main", BasicPoly.newPoly("id_new"));
+            sqLiteStorage.removePoly("main", "id_0");
+
+            int streamed = 1;
+            while (iterator.hasNext()) {
+                iterator.next();
+                streamed++;
+            }
+            assertThat(streamed, is(5));
+        }
+        assertThat(sqLiteStorage.fetchPolyCount("main"), is(5L));
+    }
+
 }